@@ -28,62 +28,77 @@ public class Application {
             try {
                 switch (command) {
                     case "newDisk":
-                        newDisk(tokens);
+                        cvfs.newDisk(tokens);
                         break;
                     case "newDoc":
-                        newDoc(tokens);
+                        cvfs.newDoc(tokens);
                         break;
                     case "newDir":
-                        newDir(tokens);
+                        cvfs.newDir(tokens);
                         break;
                     case "delete":
-                        delete(tokens);
+                        cvfs.delete(tokens);
                         break;
                     case "rename":
-                        rename(tokens);
+                        cvfs.rename(tokens);
+                        break;
+                    case "move":
+                        cvfs.move(tokens);
+                        break;
+                    case "copy":
+                        cvfs.copy(tokens);
                         break;
                     case "changeDir":
-                        changeDir(tokens);
+                        cvfs.changeDir(tokens);
                         break;
                     case "list":
-                        list();
+                        cvfs.list(tokens);
                         break;
                     case "rList":
-                        rList();
+                        cvfs.rList(tokens);
                         break;
                     case "newSimpleCri":
-                        newSimpleCri(tokens);
+                        cvfs.newSimpleCri(tokens);
                         break;
                     case "newNegation":
-                        newNegation(tokens);
+                        cvfs.newNegation(tokens);
                         break;
                     case "newBinaryCri":
-                        newBinaryCri(tokens);
+                        cvfs.newBinaryCri(tokens);
                         break;
                     case "printAllCriteria":
-                        printAllCriteria();
+                        cvfs.printAllCriteria();
                         break;
                     case "search":
-                        search(tokens);
+                        cvfs.search(tokens);
                         break;
                     case "rSearch":
-                        rSearch(tokens);
+                        cvfs.rSearch(tokens);
                         break;
                     case "save":
-                        save(tokens);
+                        cvfs.save(tokens);
                         break;
                     case "load":
-                        load(tokens);
+                        cvfs.load(tokens);
                         break;
                     case "quit":
                         System.out.println("Terminating the CVFS system.");
                         System.exit(0);
                         break;
+                    case "stats":
+                        cvfs.stats();
+                        break;
+                    case "compressThreshold":
+                        cvfs.compressThreshold(tokens);
+                        break;
+                    case "snapshot":
+                        cvfs.snapshot(tokens);
+                        break;
                     case "undo":
-                        undo();
+                        cvfs.undo();
                         break;
                     case "redo":
-                        redo();
+                        cvfs.redo();
                         break;
                     default:
                         System.out.println("Unknown command: " + command);
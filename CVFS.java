@@ -1,32 +1,91 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Custom Virtual File System (CVFS) class that manages virtual disks, directories, documents, and criteria.
+ * <p>
+ * Each instance is a session with its own working directory, criteria and
+ * undo/redo history. Sessions opened with {@link #openSession()} share the
+ * virtual disk of the session they were opened from, and all sessions share
+ * one content store.
+ * </p>
  */
 public class CVFS {
     /**
-     * Constructs a new instance of the CVFS class.
-     * This constructor initializes a new CVFS object with default settings.
-     * It does not take any parameters and does not perform any additional actions
-     * during initialization.
+     * Constructs a new session with no virtual disk loaded.
+     * The session starts with the IsDocument criterion and an empty history.
      */
     public CVFS(){}
 
+    /**
+     * Opens a new session on the virtual disk of this session.
+     * <p>
+     * The new session starts in the root directory with the IsDocument
+     * criterion and an empty history. Changes made by either session are
+     * seen by the other; undoing a change fails once another session has
+     * changed the disk since.
+     * </p>
+     *
+     * @return the new session
+     * @throws Exception if no virtual disk is loaded
+     */
+    public CVFS openSession() throws Exception {
+        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+        CVFS session = new CVFS();
+        session.attachDisk(workingDisk, session.criteriaMap);
+        return session;
+    }
+
+    /**
+     * Closes this session.
+     * <p>
+     * The history of the session is discarded, and the virtual disk is
+     * released once no other session uses it.
+     * </p>
+     */
+    public void closeSession() {
+        attachDisk(null, criteriaMap);
+    }
+
     // Constants
     private static final int BASE_FILE_SIZE = 40;
     private static final int MAX_FILE_NAME_LENGTH = 10;
-    private static final Set<String> ALLOWED_DOC_TYPES = new HashSet<>(Arrays.asList("txt", "java", "html", "css"));
-    private static final String NAME_PATTERN = "^[A-Za-z0-9]{1,10}$";
-    private static final String CRI_NAME_PATTERN = "^[A-Za-z]{2}$";
+    private static final int CRI_NAME_LENGTH = 2;
+    private static final String LIST_OPTIONS = "[--sort name|size|type] [--offset N] [--limit M] [--snapshot name]";
+    private static final int NAME_CODE_BITS = 6;
+    private static final String NAME_ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final byte[] NAME_CODES = new byte[128];
+    static {
+        // Code 0 marks an unused slot, so valid characters are numbered from 1 in ASCII order
+        for (int i = 0; i < NAME_ALPHABET.length(); i++) {
+            NAME_CODES[NAME_ALPHABET.charAt(i)] = (byte) (i + 1);
+        }
+    }
 
-    // Global variables
-    static VirtualDisk workingDisk = null;
-    static Directory workingDirectory = null;
-    static Map<String, Criterion> criteriaMap = new HashMap<>();
-    static Stack<Command> undoStack = new Stack<>();
-    static Stack<Command> redoStack = new Stack<>();
+    // Session state, guarded by the lock of the working disk
+    volatile VirtualDisk workingDisk = null;
+    Directory workingDirectory = null;
+    Map<String, Criterion> criteriaMap = defaultCriteria();
+    Stack<Command> undoStack = new Stack<>();
+    Stack<Command> redoStack = new Stack<>();
+
+    // Shared state
+    static ContentStore contentStore = new ContentStore();
 
     // Main method to run the CLI tool
 
@@ -73,28 +132,29 @@ public class CVFS {
      * This method initializes a new instance of {@link VirtualDisk}
      * with the size provided in the command tokens. It clears the
      * current state, including the criteria map and undo/redo stacks.
-     * The method expects the command tokens to contain exactly two elements:
-     * the command itself and the desired disk size.
+     * The method expects the command tokens to contain the command itself
+     * and the desired disk size. With {@code --children concurrent}, the
+     * directories of the disk keep their files in a {@link ConcurrentFileList},
+     * so they can be looked up and listed while other sessions change them;
+     * the default, {@code --children compact}, uses the smallest lists.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] must represent the disk size
-     * @throws Exception if the number of tokens is not equal to 2 or
-     *                   if the size cannot be parsed as an integer
+     *               where tokens[1] must represent the disk size,
+     *               optionally followed by the children option
+     * @throws Exception if the disk size is missing, if the option is invalid,
+     *                   or if the size cannot be parsed as a long integer
      */
-    public static void newDisk(String[] tokens) throws Exception {
-        if (tokens.length != 2) throw new Exception("Usage: newDisk diskSize");
-        int size = Integer.parseInt(tokens[1]);
+    public void newDisk(String[] tokens) throws Exception {
+        String usage = "Usage: newDisk diskSize [--children compact|concurrent]";
+        if (tokens.length < 2) throw new Exception(usage);
+        Map<String, String> options = parseOptions(tokens, 2, usage, "--children");
+        String children = options.getOrDefault("--children", "compact");
+        if (!children.equals("compact") && !children.equals("concurrent")) throw new Exception(usage);
+        long size = Long.parseLong(tokens[1]);
         if (size < 0) throw new Exception("Error: Disk size should not be negative.");
-        workingDisk = new VirtualDisk(size);
-        workingDirectory = workingDisk.getRootDirectory();
-        criteriaMap.clear(); // Clear existing criteria
-
-        // Re-add the IsDocument criterion
-        criteriaMap.put("IsDocument", new IsDocumentCriterion());
-
-        undoStack.clear();
-        redoStack.clear();
+        VirtualDisk disk = new VirtualDisk(size, children.equals("concurrent"));
+        attachDisk(disk, defaultCriteria()); // Clear existing criteria
         System.out.println("New virtual disk created with size " + size);
     }
     // REQ2: newDoc command
@@ -105,30 +165,43 @@ public class CVFS {
      * of the virtual disk. It validates the number of tokens, ensures
      * that a virtual disk is loaded, and checks if the provided document
      * type is allowed. The method expects four tokens: the command,
-     * document name, document type, and document content.
+     * document path, document type, and document content. The path may be
+     * a plain name, or a relative or absolute path whose last segment is
+     * the name of the new document.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] is the document name,
+     *               where tokens[1] is the document path,
      *               tokens[2] is the document type, and
      *               tokens[3] is the document content
      * @throws Exception if no virtual disk is loaded, if the number of
-     *                   tokens is not equal to 4, or if the document
-     *                   type is not allowed
+     *                   tokens is not equal to 4, if the parent directory
+     *                   cannot be found, or if the document type is not allowed
      */
-    public static void newDoc(String[] tokens) throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        if (tokens.length != 4) throw new Exception("Usage: newDoc docName docType docContent");
-        String name = tokens[1];
-        String type = tokens[2];
-        String content = tokens[3];
-        if (!ALLOWED_DOC_TYPES.contains(type)) throw new Exception("Document type not allowed.");
-        Document doc = new Document(name, type, content);
-        workingDirectory.addFile(doc);
-        workingDisk.updateSize();
-        undoStack.push(new NewDocCommand(doc, workingDirectory));
-        redoStack.clear();
-        System.out.println("Document " + name + " created.");
+    public void newDoc(String[] tokens) throws Exception {
+        List<Lock> locks = lockForUpdate();
+        try {
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            if (tokens.length != 4) throw new Exception("Usage: newDoc docPath docType docContent");
+            String path = tokens[1];
+            DocType type = DocType.fromName(tokens[2]);
+            String content = tokens[3];
+            if (type == null) throw new Exception("Document type not allowed.");
+            Directory dir = resolveParent(path);
+            lockDirectories(locks, dir);
+            Document doc = new Document(lastSegment(path), type, content);
+            VirtualDisk.Change change;
+            try {
+                change = workingDisk.addFile(dir, doc);
+            } catch (Exception e) {
+                doc.free();
+                throw e;
+            }
+            record(new NewDocCommand(workingDisk, doc, dir, change));
+            System.out.println("Document " + path + " created.");
+        } finally {
+            unlock(locks);
+        }
     }
 
     // REQ3: newDir command
@@ -138,53 +211,76 @@ public class CVFS {
      * This method adds a new {@link Directory} to the working directory
      * of the virtual disk. It checks if a virtual disk is loaded and
      * validates that the correct number of tokens is provided. The method
-     * expects two tokens: the command and the directory name.
+     * expects two tokens: the command and the directory path, whose last
+     * segment is the name of the new directory.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] is the directory name
-     * @throws Exception if no virtual disk is loaded, or if the number
-     *                   of tokens is not equal to 2
+     *               where tokens[1] is the directory path
+     * @throws Exception if no virtual disk is loaded, if the number
+     *                   of tokens is not equal to 2, or if the parent
+     *                   directory cannot be found
      */
-    public static void newDir(String[] tokens) throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        if (tokens.length != 2) throw new Exception("Usage: newDir dirName");
-        String name = tokens[1];
-        Directory dir = new Directory(name, workingDirectory);
-        workingDirectory.addFile(dir);
-        workingDisk.updateSize();
-        undoStack.push(new NewDirCommand(dir, workingDirectory));
-        redoStack.clear();
-        System.out.println("Directory " + name + " created.");
+    public void newDir(String[] tokens) throws Exception {
+        List<Lock> locks = lockForUpdate();
+        try {
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            if (tokens.length != 2) throw new Exception("Usage: newDir dirPath");
+            String path = tokens[1];
+            Directory parent = resolveParent(path);
+            lockDirectories(locks, parent);
+            Directory dir = new Directory(lastSegment(path), parent);
+            VirtualDisk.Change change = workingDisk.addFile(parent, dir);
+            record(new NewDirCommand(workingDisk, dir, parent, change));
+            System.out.println("Directory " + path + " created.");
+        } finally {
+            unlock(locks);
+        }
     }
 
     // REQ4: delete command
     /**
      * Deletes a file from the currently loaded virtual disk.
      * <p>
-     * This method removes a specified {@link File} from the working
-     * directory of the virtual disk. It checks if a virtual disk is
-     * loaded and validates that the correct number of tokens is provided.
-     * The method expects two tokens: the command and the file name.
+     * This method removes a specified {@link File} from the virtual disk.
+     * It checks if a virtual disk is loaded and validates that the correct
+     * number of tokens is provided. The method expects two tokens: the
+     * command and the path of the file. The working directory and its
+     * ancestors cannot be deleted.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] is the name of the file to be deleted
+     *               where tokens[1] is the path of the file to be deleted
      * @throws Exception if no virtual disk is loaded, if the number
-     *                   of tokens is not equal to 2, or if the file
-     *                   specified cannot be found in the working directory
+     *                   of tokens is not equal to 2, if the file
+     *                   specified cannot be found, or if it contains
+     *                   the working directory
      */
-    public static void delete(String[] tokens) throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        if (tokens.length != 2) throw new Exception("Usage: delete fileName");
-        String name = tokens[1];
-        File file = workingDirectory.getFile(name);
-        if (file == null) throw new Exception("File not found.");
-        workingDirectory.removeFile(name);
-        workingDisk.updateSize();
-        undoStack.push(new DeleteCommand(file, workingDirectory));
-        redoStack.clear();
-        System.out.println("File " + name + " deleted.");
+    public void delete(String[] tokens) throws Exception {
+        boolean exclusive = false;
+        while (true) {
+            List<Lock> locks = exclusive ? lockDisk(true) : lockForUpdate();
+            try {
+                if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+                if (tokens.length != 2) throw new Exception("Usage: delete filePath");
+                String path = tokens[1];
+                Directory dir = resolveParent(path);
+                lockDirectories(locks, dir);
+                File file = dir.getFile(lastSegment(path));
+                if (file == null) throw new Exception("File not found.");
+                if (file instanceof Directory && !exclusive) {
+                    exclusive = true; // deleting a directory detaches its whole subtree
+                    continue;
+                }
+                if (containsWorkingDirectory(file)) throw new Exception("Cannot delete the working directory or its ancestors.");
+                VirtualDisk.Change change = workingDisk.removeFile(dir, file.getName());
+                record(new DeleteCommand(workingDisk, file, dir, change));
+                System.out.println("File " + path + " deleted.");
+                return;
+            } finally {
+                unlock(locks);
+            }
+        }
     }
 
     // REQ5: rename command
@@ -192,34 +288,147 @@ public class CVFS {
      * Renames an existing file in the currently loaded virtual disk.
      * <p>
      * This method changes the name of a specified {@link File}
-     * in the working directory. It checks if a virtual disk is loaded,
+     * in its directory. It checks if a virtual disk is loaded,
      * validates the number of tokens, and ensures that the new file name
      * is valid and does not already exist. The method expects three tokens:
-     * the command, the old file name, and the new file name.
+     * the command, the path of the file, and the new file name.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] is the old file name and
+     *               where tokens[1] is the path of the file and
      *               tokens[2] is the new file name
      * @throws Exception if no virtual disk is loaded, if the number
      *                   of tokens is not equal to 3, if the old file
      *                   is not found, if the new file name is invalid,
      *                   or if a file with the new name already exists
      */
-    public static void rename(String[] tokens) throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        if (tokens.length != 3) throw new Exception("Usage: rename oldFileName newFileName");
-        String oldName = tokens[1];
-        String newName = tokens[2];
-        File file = workingDirectory.getFile(oldName);
-        if (file == null) throw new Exception("File not found.");
-        if (!isValidName(newName)) throw new Exception("Invalid new file name.");
-        if (workingDirectory.getFile(newName) != null) throw new Exception("A file with the new name already exists.");
-        String prevName = file.getName();
-        file.setName(newName);
-        undoStack.push(new RenameCommand(file, prevName));
-        redoStack.clear();
-        System.out.println("File " + oldName + " renamed to " + newName);
+    public void rename(String[] tokens) throws Exception {
+        boolean exclusive = false;
+        while (true) {
+            List<Lock> locks = exclusive ? lockDisk(true) : lockForUpdate();
+            try {
+                if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+                if (tokens.length != 3) throw new Exception("Usage: rename oldFilePath newFileName");
+                String path = tokens[1];
+                String newName = tokens[2];
+                Directory dir = resolveParent(path);
+                lockDirectories(locks, dir);
+                String oldName = lastSegment(path);
+                File file = dir.getFile(oldName);
+                if (file == null) throw new Exception("File not found.");
+                if (file instanceof Directory && !exclusive) {
+                    exclusive = true; // renaming a directory changes the path of its whole subtree
+                    continue;
+                }
+                if (!isValidName(newName)) throw new Exception("Invalid new file name.");
+                if (dir.getFile(newName) != null) throw new Exception("A file with the new name already exists.");
+                VirtualDisk.Change change = workingDisk.renameFile(dir, oldName, newName);
+                record(new RenameCommand(workingDisk, dir, oldName, newName, change));
+                System.out.println("File " + path + " renamed to " + newName);
+                return;
+            } finally {
+                unlock(locks);
+            }
+        }
+    }
+
+    // move command
+    /**
+     * Moves a file or directory to another directory in the currently loaded virtual disk.
+     * <p>
+     * The file keeps its name and is listed last in the target directory.
+     * The method expects three tokens: the command, the path of the file,
+     * and the path of the target directory. A directory cannot be moved
+     * into itself or one of its subdirectories.
+     * </p>
+     *
+     * @param tokens an array of strings containing command tokens,
+     *               where tokens[1] is the path of the file and
+     *               tokens[2] is the path of the target directory
+     * @throws Exception if no virtual disk is loaded, if the number
+     *                   of tokens is not equal to 3, if the file or
+     *                   target directory is not found, or if the file
+     *                   cannot be moved there
+     */
+    public void move(String[] tokens) throws Exception {
+        boolean exclusive = false;
+        while (true) {
+            List<Lock> locks = exclusive ? lockDisk(true) : lockForUpdate();
+            try {
+                if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+                if (tokens.length != 3) throw new Exception("Usage: move filePath dirPath");
+                String path = tokens[1];
+                Directory from = resolveParent(path);
+                Directory to = workingDisk.resolveDirectory(workingDirectory, tokens[2]);
+                lockDirectories(locks, from, to);
+                File file = from.getFile(lastSegment(path));
+                if (file == null) throw new Exception("File not found.");
+                if (file instanceof Directory && !exclusive) {
+                    exclusive = true; // moving a directory changes the ancestors of its whole subtree
+                    continue;
+                }
+                long prevOrder = file.getOrder();
+                VirtualDisk.Change change = workingDisk.moveFile(from, file.getName(), to);
+                record(new MoveCommand(workingDisk, file, from, prevOrder, to, change));
+                System.out.println("File " + path + " moved to " + tokens[2]);
+                return;
+            } finally {
+                unlock(locks);
+            }
+        }
+    }
+
+    // copy command
+    /**
+     * Copies a file or directory in the currently loaded virtual disk.
+     * <p>
+     * The method expects three tokens: the command, the path of the file,
+     * and the target path. If the target path names an existing directory,
+     * the copy is placed in it under the same name; otherwise the last
+     * segment of the target path is the name of the copy. The copy takes
+     * constant time and shares its content with the source until either is
+     * changed, but its full size is charged against the disk.
+     * </p>
+     *
+     * @param tokens an array of strings containing command tokens,
+     *               where tokens[1] is the path of the file and
+     *               tokens[2] is the target path
+     * @throws Exception if no virtual disk is loaded, if the number
+     *                   of tokens is not equal to 3, if the file or target
+     *                   directory is not found, if the disk space is exceeded,
+     *                   or if a file with the same name already exists
+     */
+    public void copy(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            if (tokens.length != 3) throw new Exception("Usage: copy filePath targetPath");
+            String path = tokens[1];
+            Directory from = resolveParent(path);
+            File file = from.getFile(lastSegment(path));
+            if (file == null) throw new Exception("File not found.");
+            File target = workingDisk.resolve(workingDirectory, tokens[2]);
+            Directory to;
+            String newName;
+            if (target instanceof Directory) {
+                to = (Directory) target;
+                newName = file.getName();
+            } else {
+                to = resolveParent(tokens[2]);
+                newName = lastSegment(tokens[2]);
+            }
+            long before = workingDisk.getVersion();
+            File copy = workingDisk.copyFile(from, file.getName(), to, newName);
+            VirtualDisk.Change change = new VirtualDisk.Change(before, workingDisk.getVersion());
+            if (copy instanceof Document) {
+                record(new NewDocCommand(workingDisk, (Document) copy, to, change));
+            } else {
+                record(new NewDirCommand(workingDisk, (Directory) copy, to, change));
+            }
+            System.out.println("File " + path + " copied to " + tokens[2]);
+        } finally {
+            unlock(locks);
+        }
     }
 
     // REQ6: changeDir command
@@ -227,43 +436,48 @@ public class CVFS {
      * Changes the current working directory in the virtual disk.
      * <p>
      * This method updates the current working directory to a
-     * specified {@link Directory}. It supports navigating to the
-     * parent directory using the ".." command. The method expects
-     * two tokens: the command and the directory name.
+     * specified {@link Directory}. The directory is given by a path
+     * relative to the working directory, or by an absolute path starting
+     * with "/"; the segment ".." navigates to the parent directory. The
+     * method expects two tokens: the command and the directory path.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
-     *               where tokens[1] is the directory name or ".."
+     *               where tokens[1] is the directory path or ".."
      * @throws Exception if no virtual disk is loaded, if the number
      *                   of tokens is not equal to 2, if attempting
      *                   to change to a non-existent directory, or if
      *                   already at the root directory
      */
 
-    public static void changeDir(String[] tokens) throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        if (tokens.length != 2) throw new Exception("Usage: changeDir dirName");
-        String name = tokens[1];
-        Directory prevDir = workingDirectory;
-        if (name.equals("..")) {
-            if (workingDirectory.getParent() != null) {
-                workingDirectory = workingDirectory.getParent();
-                undoStack.push(new ChangeDirCommand(prevDir));
-                redoStack.clear();
-                System.out.println("Changed to parent directory.");
-            } else {
-                throw new Exception("Already at the root directory.");
+    public void changeDir(String[] tokens) throws Exception {
+        VirtualDisk disk = workingDisk;
+        if (disk == null) throw new Exception("No virtual disk loaded.");
+        if (tokens.length != 2) throw new Exception("Usage: changeDir dirPath");
+        String path = tokens[1];
+        // Look the directory up without blocking writers; the result stands if the disk is unchanged once locked
+        Directory base = workingDirectory;
+        StampedLock diskLock = disk.getLock();
+        long stamp = diskLock.tryOptimisticRead();
+        long version = disk.getVersion();
+        Directory target = disk.findDirectory(base, path);
+        if (!diskLock.validate(stamp)) target = null;
+        List<Lock> locks = lockDisk(true);
+        try {
+            Directory prevDir = workingDirectory;
+            if (path.equals("..") && prevDir.getParent() == null) throw new Exception("Already at the root directory.");
+            if (target == null || workingDisk != disk || prevDir != base || disk.getVersion() != version) {
+                target = workingDisk.resolveDirectory(prevDir, path);
             }
-        } else {
-            File file = workingDirectory.getFile(name);
-            if (file instanceof Directory) {
-                workingDirectory = (Directory) file;
-                undoStack.push(new ChangeDirCommand(prevDir));
-                redoStack.clear();
-                System.out.println("Changed to directory " + name);
+            workingDirectory = target;
+            record(new ChangeDirCommand(this, prevDir));
+            if (path.equals("..")) {
+                System.out.println("Changed to parent directory.");
             } else {
-                throw new Exception("Directory not found.");
+                System.out.println("Changed to directory " + path);
             }
+        } finally {
+            unlock(locks);
         }
     }
 
@@ -274,27 +488,40 @@ public class CVFS {
      * This method retrieves and displays all {@link File} objects in
      * the working directory. It outputs the name, type, and size of
      * each document and directory. It also displays the total count of
-     * files and their cumulative size.
+     * files and their cumulative size. With {@code --snapshot name}, the
+     * working directory is listed as it was in that snapshot. With
+     * {@code --sort}, {@code --offset} or {@code --limit}, one page of the
+     * sorted listing is shown instead.
      * </p>
      *
-     * @throws Exception if no virtual disk is loaded
+     * @param tokens an array of strings containing command tokens,
+     *               optionally followed by sort, paging and snapshot options
+     * @throws Exception if no virtual disk is loaded, the options are invalid,
+     *                   or the snapshot or directory is not found
+     * @see #listPage(Map, boolean)
      */
-    public static void list() throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        List<File> files = workingDirectory.getFiles();
-        int totalSize = 0;
-        int count = 0;
-        for (File file : files) {
-            if (file instanceof Document) {
-                Document doc = (Document) file;
-                System.out.println("Document Name: " + doc.getName() + ", Type: " + doc.getType() + ", Size: " + doc.getSize());
-            } else if (file instanceof Directory) {
-                System.out.println("Directory Name: " + file.getName() + ", Size: " + file.getSize());
+    public void list(String[] tokens) throws Exception {
+        List<Lock> locks = lockForUpdate();
+        try {
+            Map<String, String> options = parseOptions(tokens, 1, "Usage: list " + LIST_OPTIONS, "--sort", "--offset", "--limit", "--snapshot");
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            // A concurrent directory is listed as it changes; anything else waits for its writers
+            if (!options.isEmpty() || !workingDirectory.isConcurrent()) lockStripes(locks);
+            if (options.containsKey("--sort") || options.containsKey("--offset") || options.containsKey("--limit")) {
+                listPage(options, false);
+                return;
+            }
+            long[] total = new long[2]; // total[0]: count, total[1]: size
+            if (options.containsKey("--snapshot")) {
+                listFiles(snapshotWalk(options.get("--snapshot"), false), total);
+            } else {
+                // A pending copy lists the files of its source, as they were when it was copied
+                listFiles(new TreeWalk(workingDirectory, Snapshot.LIVE, false), total);
             }
-            totalSize += file.getSize();
-            count++;
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+        } finally {
+            unlock(locks);
         }
-        System.out.println("Total files: " + count + ", Total size: " + totalSize);
     }
 
     // REQ8: rList command
@@ -304,43 +531,229 @@ public class CVFS {
      * This method initiates a recursive listing of all {@link File} objects
      * in the working directory and its child directories. It outputs the
      * name, type, and size of each document and directory, and displays
-     * the total count of files and their cumulative size.
+     * the total count of files and their cumulative size. The listing is
+     * read from a {@link TreeWalk} of the working directory, which does not
+     * hold writers off, or of a snapshot with
+     * {@code --snapshot name}. With {@code --sort},
+     * {@code --offset} or {@code --limit}, the files of every directory are
+     * listed in the sort order and one page of the listing is shown instead.
      * </p>
      *
-     * @throws Exception if no virtual disk is loaded
+     * @param tokens an array of strings containing command tokens,
+     *               optionally followed by sort, paging and snapshot options
+     * @throws Exception if no virtual disk is loaded, the options are invalid,
+     *                   or the snapshot or directory is not found
+     * @see #listPage(Map, boolean)
+     * @see #scanWorkingDirectory(String[], String, Criterion[])
      */
-    public static void rList() throws Exception {
-        if (workingDisk == null) throw new Exception("No virtual disk loaded.");
-        int[] total = new int[2]; // total[0]: count, total[1]: size
-        recursiveList(workingDirectory, 0, total);
+    public void rList(String[] tokens) throws Exception {
+        Map<String, String> options = parseOptions(tokens, 1, "Usage: rList " + LIST_OPTIONS, "--sort", "--offset", "--limit", "--snapshot");
+        long[] total = new long[2]; // total[0]: count, total[1]: size
+        if (options.isEmpty()) {
+            try (TreeWalk walk = scanWorkingDirectory(new String[1], null, null)) {
+                listFiles(walk, total);
+            }
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+            return;
+        }
+        List<Lock> locks = lockDisk(false);
+        try {
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            if (options.containsKey("--sort") || options.containsKey("--offset") || options.containsKey("--limit")) {
+                listPage(options, true);
+                return;
+            }
+            listFiles(snapshotWalk(options.get("--snapshot"), true), total);
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Starts a walk of the working directory that does not hold writers off while the tree is walked.
+     * <p>
+     * The disk is locked exclusively only for as long as it takes to pin its
+     * current state with {@link VirtualDisk#pin()}, so the scan never sees a
+     * change half applied. The walk then reads the pinned snapshot while
+     * other sessions go on changing the disk, and closing it releases the
+     * pin. A criterion to scan with is looked up while the disk is locked,
+     * as another thread of the session may be adding criteria.
+     * </p>
+     *
+     * @param base where the path of the working directory is stored, as it was when the disk was pinned
+     * @param criName the name of the criterion to look up, or null if none is needed
+     * @param criterion where the criterion is stored, or null if none is needed
+     * @return the walk of the working directory, to be closed once done
+     * @throws Exception if the criterion is not found or no virtual disk is loaded
+     */
+    TreeWalk scanWorkingDirectory(String[] base, String criName, Criterion[] criterion) throws Exception {
+        VirtualDisk disk;
+        Directory dir;
+        Snapshot pin;
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (criName != null) {
+                criterion[0] = criteriaMap.get(criName);
+                if (criterion[0] == null) throw new Exception("Criterion not found.");
+            }
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            disk = workingDisk;
+            dir = workingDirectory;
+            base[0] = dir.getPath();
+            pin = disk.pin();
+        } finally {
+            unlock(locks);
+        }
+        return disk.walk(dir, pin);
+    }
+
+    /**
+     * Lists one page of the files in the working directory, sorted as requested.
+     * <p>
+     * The options are {@code --sort name|size|type}, {@code --offset N} and
+     * {@code --limit M}, and the listing may target a snapshot. Without a sort
+     * key, files are listed in the order they were added. Files are ordered
+     * within each directory, and the page is taken from the listing as it
+     * would be printed, so for a recursive listing the offset and limit count
+     * the files of subdirectories too. Only as much of the listing as the page
+     * needs is produced:
+     * </p>
+     * <ul>
+     *     <li>in insertion order, and in name order for the current state,
+     *     files are read from the directory's own ordered lists, and a plain
+     *     listing skips to the offset without visiting the files before it;</li>
+     *     <li>in any other order, each directory keeps only the first files it
+     *     can contribute to the page in a bounded heap.</li>
+     * </ul>
+     * <p>
+     * The totals cover the files on the page.
+     * </p>
+     *
+     * @param options the options given to the command
+     * @param recursive true to list subdirectories too, false for the working directory only
+     * @throws Exception if an option value is invalid, or the snapshot or directory is not found
+     */
+    public void listPage(Map<String, String> options, boolean recursive) throws Exception {
+        String sort = options.get("--sort");
+        if (sort != null && !sort.equals("name") && !sort.equals("size") && !sort.equals("type"))
+            throw new Exception("Sort key must be name, size or type.");
+        int offset = options.containsKey("--offset") ? parseCount(options.get("--offset"), "Offset") : 0;
+        int limit = options.containsKey("--limit") ? parseCount(options.get("--limit"), "Limit") : Integer.MAX_VALUE;
+        int end = (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+        int[] at = {Snapshot.LIVE};
+        Directory dir = workingDirectory;
+        if (options.containsKey("--snapshot")) {
+            dir = workingDisk.getSnapshot(options.get("--snapshot")).resolveDirectory(workingDirectory.getPath(), at);
+        }
+        // A plain listing can skip straight to the offset; a recursive one has to count the lines of subdirectories
+        int line = recursive ? 0 : offset;
+        Deque<Iterator<File>> iterators = new ArrayDeque<>();
+        Deque<Integer> snapshots = new ArrayDeque<>(); // the snapshot each level is read in, see Directory#getFiles(int, int[])
+        iterators.push(sortedFiles(dir, at[0], sort, line, end - line, at));
+        snapshots.push(at[0]);
+        long[] total = new long[2]; // total[0]: count, total[1]: size
+        while (!iterators.isEmpty() && line < end) {
+            Iterator<File> files = iterators.peek();
+            if (!files.hasNext()) {
+                iterators.pop();
+                snapshots.pop();
+                continue;
+            }
+            File file = files.next();
+            int snapshot = snapshots.peek();
+            if (line++ >= offset) {
+                String indent = generateIndent(iterators.size() - 1);
+                String name = decodeName(file.getPackedName(snapshot));
+                long size = file.getSize(snapshot);
+                if (file instanceof Document) {
+                    System.out.println(indent + "Document Name: " + name + ", Type: " + ((Document) file).getType() + ", Size: " + size);
+                } else {
+                    System.out.println(indent + "Directory Name: " + name + ", Size: " + size);
+                }
+                total[0]++;
+                total[1] += size;
+            }
+            if (recursive && file instanceof Directory) {
+                iterators.push(sortedFiles((Directory) file, snapshot, sort, 0, end - line, at));
+                snapshots.push(at[0]);
+            }
+        }
         System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
     }
 
     /**
-     * Recursively lists all files and directories in the specified directory.
+     * Returns the files of a directory in the specified sort order, starting at a position.
+     * <p>
+     * Orders that the directory keeps lists for are read from those lists.
+     * Other orders keep only the first {@code from + count} files in a bounded
+     * heap while scanning the directory.
+     * </p>
+     *
+     * @param dir the directory whose files are returned
+     * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+     * @param sort the sort key, "name", "size" or "type", or null for insertion order
+     * @param from the number of files to skip
+     * @param count the number of files needed after the skipped ones
+     * @param at where the snapshot in which the files are read is stored, see {@link Directory#getFiles(int, int[])}
+     * @return an iterator over at least the requested files in sort order
+     */
+    static Iterator<File> sortedFiles(Directory dir, int snapshot, String sort, int from, int count, int[] at) {
+        if (sort == null) return dir.getFiles(snapshot, from, at);
+        Collection<File> files = dir.getFiles(snapshot, at);
+        if (sort.equals("name") && at[0] == Snapshot.LIVE) return dir.getFilesByName(from);
+        int view = at[0];
+        Comparator<File> byName = Comparator.comparingLong(file -> file.getPackedName(view));
+        Comparator<File> order;
+        if (sort.equals("size")) {
+            order = Comparator.<File>comparingLong(file -> file.getSize(view)).thenComparing(byName);
+        } else if (sort.equals("type")) {
+            // Directories first, then documents by type
+            order = Comparator.<File, String>comparing(file -> file instanceof Document ? ((Document) file).getType().toString() : "").thenComparing(byName);
+        } else {
+            order = byName;
+        }
+        int needed = (int) Math.min(Integer.MAX_VALUE, (long) from + count);
+        List<File> sorted;
+        if (needed >= files.size()) {
+            sorted = new ArrayList<>(files);
+            sorted.sort(order);
+        } else {
+            PriorityQueue<File> heap = new PriorityQueue<>(needed + 1, order.reversed());
+            for (File file : files) {
+                heap.offer(file);
+                if (heap.size() > needed) heap.poll();
+            }
+            sorted = new ArrayList<>(heap);
+            sorted.sort(order);
+        }
+        return sorted.subList(Math.min(from, sorted.size()), sorted.size()).iterator();
+    }
+
+    /**
+     * Lists all files and directories visited by the specified walk.
      * <p>
-     * This helper method traverses the provided {@link Directory} and
-     * outputs the name, type, and size of each document and directory.
-     * It also accumulates the total count of files and their cumulative size.
+     * This helper method follows the walk, which visits the files in the
+     * order of a recursive listing, and outputs the name, type, and size of
+     * each document and directory indented by its depth. It also
+     * accumulates the total count of files and their cumulative size.
      * </p>
      *
-     * @param dir the directory to list files from
-     * @param level the current depth level for indentation
+     * @param walk the walk to list files from
      * @param total an array where total[0] is the count of files and
      *               total[1] is the cumulative size of files
      */
-    public static void recursiveList(Directory dir, int level, int[] total) {
-        String indent = generateIndent(level);
-        for (File file : dir.getFiles()) {
-            if (file instanceof Document) {
-                Document doc = (Document) file;
-                System.out.println(indent + "Document Name: " + doc.getName() + ", Type: " + doc.getType() + ", Size: " + doc.getSize());
-            } else if (file instanceof Directory) {
-                System.out.println(indent + "Directory Name: " + file.getName() + ", Size: " + file.getSize());
-                recursiveList((Directory) file, level + 1, total);
+    public static void listFiles(TreeWalk walk, long[] total) {
+        for (File file = walk.next(); file != null; file = walk.next()) {
+            String indent = generateIndent(walk.getDepth());
+            long size = walk.getSize();
+            if (file instanceof Directory) {
+                System.out.println(indent + "Directory Name: " + decodeName(walk.getName()) + ", Size: " + size);
+            } else {
+                System.out.println(indent + "Document Name: " + decodeName(walk.getName()) + ", Type: " + ((Document) file).getType() + ", Size: " + size);
             }
             total[0]++;
-            total[1] += file.getSize();
+            total[1] += size;
         }
     }
 
@@ -385,24 +798,23 @@ public class CVFS {
      *                   if the criterion name is invalid, or if
      *                   a criterion with the same name already exists
      */
-    public static void newSimpleCri(String[] tokens) throws Exception {
-        if (tokens.length != 5) throw new Exception("Usage: newSimpleCri criName attrName op val");
-        String criName = tokens[1];
-        String attrName = tokens[2];
-        String op = tokens[3];
-        String val = tokens[4];
-        if (!criName.matches(CRI_NAME_PATTERN)) throw new Exception("Invalid criterion name.");
-        if (criteriaMap.containsKey(criName)) throw new Exception("Criterion name already exists.");
-        Criterion criterion = new SimpleCriterion(attrName, op, val);
-        criteriaMap.put(criName, criterion);
-        undoStack.push(new NewCriterionCommand(criName));
-        redoStack.clear();
-        System.out.println("Simple criterion " + criName + " created.");
-    }
-
-    // REQ10: IsDocument criterion
-    static {
-        criteriaMap.put("IsDocument", new IsDocumentCriterion());
+    public void newSimpleCri(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (tokens.length != 5) throw new Exception("Usage: newSimpleCri criName attrName op val");
+            String criName = tokens[1];
+            String attrName = tokens[2];
+            String op = tokens[3];
+            String val = tokens[4];
+            if (!isValidCriterionName(criName)) throw new Exception("Invalid criterion name.");
+            if (criteriaMap.containsKey(criName)) throw new Exception("Criterion name already exists.");
+            Criterion criterion = new SimpleCriterion(attrName, op, val);
+            criteriaMap.put(criName, criterion);
+            record(new NewCriterionCommand(criteriaMap, criName));
+            System.out.println("Simple criterion " + criName + " created.");
+        } finally {
+            unlock(locks);
+        }
     }
 
     // REQ11: newNegation and newBinaryCri commands
@@ -425,19 +837,23 @@ public class CVFS {
      *                   if the new criterion name already exists,
      *                   or if the referenced criterion does not exist
      */
-    public static void newNegation(String[] tokens) throws Exception {
-        if (tokens.length != 3) throw new Exception("Usage: newNegation criName1 criName2");
-        String criName1 = tokens[1];
-        String criName2 = tokens[2];
-        if (!criName1.matches(CRI_NAME_PATTERN)) throw new Exception("Invalid criterion name.");
-        if (criteriaMap.containsKey(criName1)) throw new Exception("Criterion name already exists.");
-        Criterion c2 = criteriaMap.get(criName2);
-        if (c2 == null) throw new Exception("Criterion " + criName2 + " does not exist.");
-        Criterion criterion = new NegationCriterion(c2);
-        criteriaMap.put(criName1, criterion);
-        undoStack.push(new NewCriterionCommand(criName1));
-        redoStack.clear();
-        System.out.println("Negation criterion " + criName1 + " created.");
+    public void newNegation(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (tokens.length != 3) throw new Exception("Usage: newNegation criName1 criName2");
+            String criName1 = tokens[1];
+            String criName2 = tokens[2];
+            if (!isValidCriterionName(criName1)) throw new Exception("Invalid criterion name.");
+            if (criteriaMap.containsKey(criName1)) throw new Exception("Criterion name already exists.");
+            Criterion c2 = criteriaMap.get(criName2);
+            if (c2 == null) throw new Exception("Criterion " + criName2 + " does not exist.");
+            Criterion criterion = new NegationCriterion(c2);
+            criteriaMap.put(criName1, criterion);
+            record(new NewCriterionCommand(criteriaMap, criName1));
+            System.out.println("Negation criterion " + criName1 + " created.");
+        } finally {
+            unlock(locks);
+        }
     }
 
     /**
@@ -463,22 +879,26 @@ public class CVFS {
      *                   if the new criterion name already exists,
      *                   or if either of the referenced criteria do not exist
      */
-    public static void newBinaryCri(String[] tokens) throws Exception {
-        if (tokens.length != 5) throw new Exception("Usage: newBinaryCri criName1 criName3 logicOp criName4");
-        String criName1 = tokens[1];
-        String criName3 = tokens[2];
-        String logicOp = tokens[3];
-        String criName4 = tokens[4];
-        if (!criName1.matches(CRI_NAME_PATTERN)) throw new Exception("Invalid criterion name.");
-        if (criteriaMap.containsKey(criName1)) throw new Exception("Criterion name already exists.");
-        Criterion c3 = criteriaMap.get(criName3);
-        Criterion c4 = criteriaMap.get(criName4);
-        if (c3 == null || c4 == null) throw new Exception("Criteria do not exist.");
-        Criterion criterion = new BinaryCriterion(c3, logicOp, c4);
-        criteriaMap.put(criName1, criterion);
-        undoStack.push(new NewCriterionCommand(criName1));
-        redoStack.clear();
-        System.out.println("Binary criterion " + criName1 + " created.");
+    public void newBinaryCri(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (tokens.length != 5) throw new Exception("Usage: newBinaryCri criName1 criName3 logicOp criName4");
+            String criName1 = tokens[1];
+            String criName3 = tokens[2];
+            String logicOp = tokens[3];
+            String criName4 = tokens[4];
+            if (!isValidCriterionName(criName1)) throw new Exception("Invalid criterion name.");
+            if (criteriaMap.containsKey(criName1)) throw new Exception("Criterion name already exists.");
+            Criterion c3 = criteriaMap.get(criName3);
+            Criterion c4 = criteriaMap.get(criName4);
+            if (c3 == null || c4 == null) throw new Exception("Criteria do not exist.");
+            Criterion criterion = new BinaryCriterion(c3, logicOp, c4);
+            criteriaMap.put(criName1, criterion);
+            record(new NewCriterionCommand(criteriaMap, criName1));
+            System.out.println("Binary criterion " + criName1 + " created.");
+        } finally {
+            unlock(locks);
+        }
     }
 
     // REQ12: printAllCriteria command
@@ -491,9 +911,14 @@ public class CVFS {
      * system.
      * </p>
      */
-    public static void printAllCriteria() {
-        for (Map.Entry<String, Criterion> entry : criteriaMap.entrySet()) {
-            System.out.println(entry.getKey() + ": " + entry.getValue().toString());
+    public void printAllCriteria() {
+        List<Lock> locks = lockDisk(false);
+        try {
+            for (Map.Entry<String, Criterion> entry : criteriaMap.entrySet()) {
+                System.out.println(entry.getKey() + ": " + entry.getValue().toString());
+            }
+        } finally {
+            unlock(locks);
         }
     }
 
@@ -503,35 +928,34 @@ public class CVFS {
      * <p>
      * This method evaluates the files in the working directory against the
      * given criterion. It prints the details of each matching file, including
-     * the name, type, and size. The method expects two tokens: the command and
-     * the criterion name.
+     * the name, path, type, and size. The method expects two tokens: the command and
+     * the criterion name, optionally followed by {@code --snapshot name} to
+     * search the working directory as it was in that snapshot.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
      *               where tokens[1] is the name of the criterion to use for the search
-     * @throws Exception if the number of tokens is not equal to 2,
-     *                   or if the specified criterion is not found
-     */
-    public static void search(String[] tokens) throws Exception {
-        if (tokens.length != 2) throw new Exception("Usage: search criName");
-        Criterion criterion = criteriaMap.get(tokens[1]);
-        if (criterion == null) throw new Exception("Criterion not found.");
-        List<File> files = workingDirectory.getFiles();
-        int totalSize = 0;
-        int count = 0;
-        for (File file : files) {
-            if (criterion.evaluate(file)) {
-                if (file instanceof Document) {
-                    Document doc = (Document) file;
-                    System.out.println("Document Name: " + doc.getName() + ", Type: " + doc.getType() + ", Size: " + doc.getSize());
-                } else if (file instanceof Directory) {
-                    System.out.println("Directory Name: " + file.getName() + ", Size: " + file.getSize());
-                }
-                totalSize += file.getSize();
-                count++;
+     * @throws Exception if the number of tokens is invalid,
+     *                   or if the specified criterion or snapshot is not found
+     */
+    public void search(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(false);
+        try {
+            if (tokens.length < 2) throw new Exception("Usage: search criName [--snapshot name]");
+            Map<String, String> options = parseOptions(tokens, 2, "Usage: search criName [--snapshot name]", "--snapshot");
+            Criterion criterion = criteriaMap.get(tokens[1]);
+            if (criterion == null) throw new Exception("Criterion not found.");
+            long[] total = new long[2]; // total[0]: count, total[1]: size
+            if (options.containsKey("--snapshot")) {
+                if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+                searchFiles(snapshotWalk(options.get("--snapshot"), false), workingDirectory.getPath(), criterion, total);
+            } else {
+                searchFiles(new TreeWalk(workingDirectory, Snapshot.LIVE, false), workingDirectory.getPath(), criterion, total);
             }
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+        } finally {
+            unlock(locks);
         }
-        System.out.println("Total files: " + count + ", Total size: " + totalSize);
     }
 
     // REQ14: rSearch command
@@ -541,51 +965,72 @@ public class CVFS {
      * <p>
      * This method evaluates the files in the working directory and all subdirectories
      * against the given criterion. It prints the details of each matching file, including
-     * the name, type, and size. The method expects two tokens: the command and the
-     * criterion name.
+     * the name, path, type, and size. The method expects two tokens: the command and the
+     * criterion name, optionally followed by {@code --snapshot name}. The search
+     * follows a {@link TreeWalk} of the working directory, which does not hold
+     * writers off, or of the snapshot.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
      *               where tokens[1] is the name of the criterion to use for the search
-     * @throws Exception if the number of tokens is not equal to 2,
-     *                   or if the specified criterion is not found
-     */
-    public static void rSearch(String[] tokens) throws Exception {
-        if (tokens.length != 2) throw new Exception("Usage: rSearch criName");
-        Criterion criterion = criteriaMap.get(tokens[1]);
-        if (criterion == null) throw new Exception("Criterion not found.");
-        int[] total = new int[2]; // total[0]: count, total[1]: size
-        recursiveSearch(workingDirectory, criterion, total);
-        System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+     * @throws Exception if the number of tokens is invalid,
+     *                   or if the specified criterion or snapshot is not found
+     * @see #scanWorkingDirectory(String[], String, Criterion[])
+     */
+    public void rSearch(String[] tokens) throws Exception {
+        if (tokens.length < 2) throw new Exception("Usage: rSearch criName [--snapshot name]");
+        Map<String, String> options = parseOptions(tokens, 2, "Usage: rSearch criName [--snapshot name]", "--snapshot");
+        long[] total = new long[2]; // total[0]: count, total[1]: size
+        if (options.isEmpty()) {
+            String[] base = new String[1];
+            Criterion[] criterion = new Criterion[1];
+            try (TreeWalk walk = scanWorkingDirectory(base, tokens[1], criterion)) {
+                searchFiles(walk, base[0], criterion[0], total);
+            }
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+            return;
+        }
+        List<Lock> locks = lockDisk(false);
+        try {
+            Criterion criterion = criteriaMap.get(tokens[1]);
+            if (criterion == null) throw new Exception("Criterion not found.");
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            searchFiles(snapshotWalk(options.get("--snapshot"), true), workingDirectory.getPath(), criterion, total);
+            System.out.println("Total files: " + total[0] + ", Total size: " + total[1]);
+        } finally {
+            unlock(locks);
+        }
     }
     /**
-     * Recursively searches for files in the specified directory that match the given criterion.
+     * Searches all files visited by the specified walk for those that match the given criterion.
      * <p>
-     * This method traverses the provided {@link Directory} and evaluates each file
-     * against the specified criterion. It prints the details of each matching file,
-     * including the name, type, and size, while accumulating the total count and size
-     * of the matching files.
+     * This method follows the walk and evaluates each file against the
+     * specified criterion, as the file was in the snapshot the walk reads.
+     * It prints the details of each matching file, including the name, path,
+     * type, and size, while accumulating the total count and size of the
+     * matching files. The walk is expected to start at the working
+     * directory, or at the directory with the same path in a snapshot.
      * </p>
      *
-     * @param dir the directory to search within
+     * @param walk the walk to search within
+     * @param base the path of the root of the walk
      * @param criterion the criterion used to evaluate files
      * @param total an array where total[0] is the count of matching files and
      *               total[1] is their cumulative size
      */
-    public static void recursiveSearch(Directory dir, Criterion criterion, int[] total) {
-        for (File file : dir.getFiles()) {
-            if (criterion.evaluate(file)) {
-                if (file instanceof Document) {
-                    Document doc = (Document) file;
-                    System.out.println("Document Name: " + doc.getName() + ", Type: " + doc.getType() + ", Size: " + doc.getSize());
-                } else if (file instanceof Directory) {
-                    System.out.println("Directory Name: " + file.getName() + ", Size: " + file.getSize());
+    public static void searchFiles(TreeWalk walk, String base, Criterion criterion, long[] total) {
+        String prefix = base.length() == 1 ? base : base + "/";
+        for (File file = walk.next(); file != null; file = walk.next()) {
+            if (criterion.evaluate(file, walk.getSnapshot())) {
+                String path = prefix + walk.getRelativePath();
+                long size = walk.getSize();
+                if (file instanceof Directory) {
+                    System.out.println("Directory Name: " + decodeName(walk.getName()) + ", Path: " + path + ", Size: " + size);
+                } else {
+                    System.out.println("Document Name: " + decodeName(walk.getName()) + ", Path: " + path + ", Type: " + ((Document) file).getType() + ", Size: " + size);
                 }
                 total[0]++;
-                total[1] += file.getSize();
-            }
-            if (file instanceof Directory) {
-                recursiveSearch((Directory) file, criterion, total);
+                total[1] += size;
             }
         }
     }
@@ -596,24 +1041,38 @@ public class CVFS {
      * <p>
      * This method serializes the current {@link VirtualDisk} and the criteria map to
      * a file specified by the provided path. It expects two tokens: the command and
-     * the path where the data should be saved. If the save operation fails, an exception
-     * is thrown with an appropriate error message.
+     * the path where the data should be saved, optionally followed by
+     * {@code --snapshot name} to save the disk as it was in that snapshot. If the
+     * save operation fails, an exception is thrown with an appropriate error message.
      * </p>
      *
      * @param tokens an array of strings containing command tokens,
      *               where tokens[1] is the file path to save the virtual disk
-     * @throws Exception if the number of tokens is not equal to 2,
-     *                   or if an I/O error occurs during saving
+     * @throws Exception if the number of tokens is invalid, if the snapshot is
+     *                   not found, or if an I/O error occurs during saving
      */
-    public static void save(String[] tokens) throws Exception {
-        if (tokens.length != 2) throw new Exception("Usage: save path");
-        String path = tokens[1];
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
-            oos.writeObject(workingDisk);
-            oos.writeObject(criteriaMap);
-            System.out.println("Virtual disk saved to " + path);
-        } catch (IOException e) {
-            throw new Exception("Failed to save virtual disk: " + e.getMessage());
+    public void save(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(false);
+        try {
+            if (tokens.length < 2) throw new Exception("Usage: save path [--snapshot name]");
+            Map<String, String> options = parseOptions(tokens, 2, "Usage: save path [--snapshot name]", "--snapshot");
+            String path = tokens[1];
+            VirtualDisk disk = workingDisk;
+            if (options.containsKey("--snapshot")) {
+                if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+                disk = workingDisk.materialize(workingDisk.getSnapshot(options.get("--snapshot")));
+            }
+            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
+                oos.writeObject(disk);
+                oos.writeObject(criteriaMap);
+                System.out.println("Virtual disk saved to " + path);
+            } catch (IOException e) {
+                throw new Exception("Failed to save virtual disk: " + e.getMessage());
+            } finally {
+                if (disk != workingDisk) releaseContent(disk.getRootDirectory());
+            }
+        } finally {
+            unlock(locks);
         }
     }
 
@@ -633,19 +1092,102 @@ public class CVFS {
      *                   or if an I/O error or class not found error occurs during loading
      */
     @SuppressWarnings("unchecked")
-    public static void load(String[] tokens) throws Exception {
+    public void load(String[] tokens) throws Exception {
         if (tokens.length != 2) throw new Exception("Usage: load path");
         String path = tokens[1];
+        VirtualDisk disk = null;
+        Map<String, Criterion> criteria;
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path))) {
-            workingDisk = (VirtualDisk) ois.readObject();
-            criteriaMap = (Map<String, Criterion>) ois.readObject();
-            workingDirectory = workingDisk.getRootDirectory();
-            undoStack.clear();
-            redoStack.clear();
-            System.out.println("Virtual disk loaded from " + path);
+            disk = (VirtualDisk) ois.readObject();
+            criteria = (Map<String, Criterion>) ois.readObject();
         } catch (IOException | ClassNotFoundException e) {
+            // The documents of a disk that was read have already stored their content
+            if (disk != null) releaseDisk(disk);
             throw new Exception("Failed to load virtual disk: " + e.getMessage());
         }
+        attachDisk(disk, criteria);
+        System.out.println("Virtual disk loaded from " + path);
+    }
+
+    // stats command
+    /**
+     * Prints storage statistics for the currently loaded virtual disk.
+     * <p>
+     * This method reports the bytes charged against the disk quota, the
+     * logical size of all stored document content, its size after identical
+     * bodies have been deduplicated, and its physical size after compression,
+     * together with the compression ratio achieved on compressed bodies.
+     * </p>
+     *
+     * @throws Exception if no virtual disk is loaded
+     */
+    public void stats() throws Exception {
+        VirtualDisk disk = workingDisk;
+        if (disk == null) throw new Exception("No virtual disk loaded.");
+        long used = disk.getUsedBytes(); // kept atomically, so no lock is needed
+        long logical = contentStore.getLogicalBytes();
+        long unique = contentStore.getUniqueBytes();
+        long physical = contentStore.getPhysicalBytes();
+        System.out.println("Disk used: " + used);
+        System.out.println("Content logical size: " + logical + ", Deduplicated size: " + unique + ", Physical size: " + physical);
+        System.out.println("Saved by deduplication: " + (logical - unique) + ", Saved by compression: " + (unique - physical));
+        System.out.println("Compressed bodies: " + contentStore.getCompressedBodies() + ", Compression ratio: "
+                + String.format("%.2f", contentStore.getCompressionRatio()));
+    }
+
+    // compressThreshold command
+    /**
+     * Sets the size from which newly created document bodies are stored compressed.
+     * <p>
+     * The method expects two tokens: the command and the threshold in bytes,
+     * measured on the uncompressed body. Bodies that are already stored keep
+     * their current form.
+     * </p>
+     *
+     * @param tokens an array of strings containing command tokens,
+     *               where tokens[1] is the threshold in bytes
+     * @throws Exception if the number of tokens is not equal to 2, or if
+     *                   the threshold is not a non-negative integer
+     */
+    public void compressThreshold(String[] tokens) throws Exception {
+        if (tokens.length != 2) throw new Exception("Usage: compressThreshold bytes");
+        int threshold;
+        try {
+            threshold = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            throw new Exception("Threshold must be an integer.");
+        }
+        if (threshold < 0) throw new Exception("Threshold should not be negative.");
+        contentStore.setCompressionThreshold(threshold);
+        System.out.println("Compression threshold set to " + threshold + " bytes.");
+    }
+
+    // snapshot command
+    /**
+     * Takes a named snapshot of the currently loaded virtual disk.
+     * <p>
+     * The snapshot takes constant time and can later be targeted by the
+     * read-only commands {@code list}, {@code rList}, {@code search},
+     * {@code rSearch} and {@code save} with {@code --snapshot name}.
+     * Snapshots are not saved with the disk and cannot be undone.
+     * </p>
+     *
+     * @param tokens an array of strings containing command tokens,
+     *               where tokens[1] is the name of the snapshot
+     * @throws Exception if the number of tokens is not equal to 2, if no virtual
+     *                   disk is loaded, or if the name is invalid or already taken
+     */
+    public void snapshot(String[] tokens) throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (tokens.length != 2) throw new Exception("Usage: snapshot name");
+            if (workingDisk == null) throw new Exception("No virtual disk loaded.");
+            if (!isValidName(tokens[1])) throw new Exception("Invalid snapshot name.");
+            workingDisk.takeSnapshot(tokens[1]);
+            System.out.println("Snapshot " + tokens[1] + " created");
+        } finally {
+            unlock(locks);
+        }
     }
 
     // undo and redo commands
@@ -655,18 +1197,24 @@ public class CVFS {
      * This method pops the last command from the undo stack and
      * invokes its {@code undo} method. The command is then pushed
      * onto the redo stack, allowing it to be reapplied later if needed.
-     * If there are no commands to undo, an exception is thrown.
+     * If there are no commands to undo, an exception is thrown. A command
+     * that fails to undo stays on the undo stack.
      * </p>
      *
      * @throws Exception if the undo stack is empty, indicating
      *                   that there is nothing to undo
      */
-    public static void undo() throws Exception {
-        if (undoStack.isEmpty()) throw new Exception("Nothing to undo.");
-        Command cmd = undoStack.pop();
-        cmd.undo();
-        redoStack.push(cmd);
-        System.out.println("Undo successful.");
+    public void undo() throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (undoStack.isEmpty()) throw new Exception("Nothing to undo.");
+            Command cmd = undoStack.peek();
+            cmd.undo();
+            redoStack.push(undoStack.pop());
+            System.out.println("Undo successful.");
+        } finally {
+            unlock(locks);
+        }
     }
     /**
      * Reapplies the most recently undone action in the system.
@@ -674,259 +1222,3430 @@ public class CVFS {
      * This method pops the last command from the redo stack and
      * invokes its {@code redo} method. The command is then pushed
      * back onto the undo stack, allowing it to be undone again if needed.
-     * If there are no commands to redo, an exception is thrown.
+     * If there are no commands to redo, an exception is thrown. A command
+     * that fails to redo stays on the redo stack.
      * </p>
      *
      * @throws Exception if the redo stack is empty, indicating
      *                   that there is nothing to redo
      */
-    public static void redo() throws Exception {
-        if (redoStack.isEmpty()) throw new Exception("Nothing to redo.");
-        Command cmd = redoStack.pop();
-        cmd.redo();
-        undoStack.push(cmd);
-        System.out.println("Redo successful.");
+    public void redo() throws Exception {
+        List<Lock> locks = lockDisk(true);
+        try {
+            if (redoStack.isEmpty()) throw new Exception("Nothing to redo.");
+            Command cmd = redoStack.peek();
+            cmd.redo();
+            undoStack.push(redoStack.pop());
+            System.out.println("Redo successful.");
+        } finally {
+            unlock(locks);
+        }
     }
 
-    // Abstract File class
     /**
-     * Abstract class representing a file in the system.
+     * Parses the {@code --option value} pairs that follow the positional command tokens.
+     *
+     * @param tokens an array of strings containing command tokens
+     * @param from the index of the first option token
+     * @param usage the usage message reported for malformed options
+     * @param allowed the option names accepted by the command
+     * @return the option values keyed by option name
+     * @throws Exception if an option is unknown, repeated, or has no value
+     */
+    static Map<String, String> parseOptions(String[] tokens, int from, String usage, String... allowed) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < tokens.length; i += 2) {
+            if (i + 1 == tokens.length || !Arrays.asList(allowed).contains(tokens[i])) throw new Exception(usage);
+            if (options.put(tokens[i], tokens[i + 1]) != null) throw new Exception(usage);
+        }
+        return options;
+    }
+
+    /**
+     * Parses a non-negative count given as an option value.
+     *
+     * @param value the option value
+     * @param what the name of the value, used in the error message
+     * @return the count
+     * @throws Exception if the value is not a non-negative integer
+     */
+    static int parseCount(String value, String what) throws Exception {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new Exception(what + " must be a non-negative integer.");
+        }
+        if (count < 0) throw new Exception(what + " must be a non-negative integer.");
+        return count;
+    }
+
+    /**
+     * Starts a walk of the working directory as it was in the specified snapshot, for a caller holding the disk lock.
+     *
+     * @param name the name of the snapshot
+     * @param recursive true to visit the whole subtree, false for the direct children only
+     * @return the walk of the working directory in the snapshot
+     * @throws Exception if the snapshot is not found, or the working directory did not exist in it
+     */
+    TreeWalk snapshotWalk(String name, boolean recursive) throws Exception {
+        int[] at = new int[1];
+        Directory dir = workingDisk.getSnapshot(name).resolveDirectory(workingDirectory.getPath(), at);
+        return new TreeWalk(dir, at[0], recursive);
+    }
+
+    /**
+     * Resolves the directory that contains the last segment of the specified path.
      * <p>
-     * This class serves as a base for different types of files, providing
-     * common functionality such as name validation and retrieval. It
-     * includes an abstract method for getting the size of the file, which
-     * must be implemented by subclasses. Each file has a name and a
-     * reference to its parent directory.
+     * Commands resolve the directory they are about to change this way, so
+     * a pending copy is expanded: the files then looked up in it are the
+     * copies on the disk.
      * </p>
+     *
+     * @param path a file path relative to the working directory, or absolute
+     * @return the directory named by all but the last segment of the path
+     * @throws Exception if the directory cannot be found
      */
-    static abstract class File implements Serializable {
-        /**
-         *
-         */
-        protected String name;
-        /**
-         *
-         */
-        public Directory parent;
-        /**
-         * Constructs a new File with the specified name.
-         *
-         * @param name the name of the file
-         * @throws Exception if the file name is invalid
-         */
+    Directory resolveParent(String path) throws Exception {
+        int slash = path.lastIndexOf('/');
+        Directory dir = slash < 0 ? workingDirectory : workingDisk.resolveDirectory(workingDirectory, slash == 0 ? "/" : path.substring(0, slash));
+        dir.expand(); // the command changes the directory, or copies a file from it
+        return dir;
+    }
 
-        public File(String name) throws Exception {
-            if (!isValidName(name)) throw new Exception("Invalid file name.");
-            this.name = name;
+    /**
+     * Returns the last segment of the specified path.
+     *
+     * @param path a file path
+     * @return the part of the path after the last "/"
+     */
+    static String lastSegment(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Checks whether the specified file is the working directory or one of its ancestors.
+     *
+     * @param file the file to check
+     * @return true if deleting the file would detach the working directory, false otherwise
+     */
+    boolean containsWorkingDirectory(File file) {
+        for (Directory dir = workingDirectory; dir != null; dir = dir.getParent()) {
+            if (dir == file) return true;
         }
-        /**
-         * Returns the name of the file.
+        return false;
+    }
+
+    /**
+     * Discards all commands on the redo stack.
+     * <p>
+     * Each command is given the chance to release resources that only it
+     * still refers to, such as the content of a document whose creation
+     * was undone.
+     * </p>
+     *
+     * @see VirtualDisk#discard(File)
+     */
+    void clearRedoStack() {
+        while (!redoStack.isEmpty()) {
+            redoStack.pop().discard(false);
+        }
+    }
+
+    /**
+     * Returns the criteria a session starts with.
+     *
+     * @return a new criteria map holding the IsDocument criterion
+     */
+    static Map<String, Criterion> defaultCriteria() {
+        Map<String, Criterion> criteria = new HashMap<>();
+        // REQ10: IsDocument criterion
+        criteria.put("IsDocument", new IsDocumentCriterion());
+        return criteria;
+    }
+
+    /**
+     * Leaves the working disk and makes the specified disk the working disk of this session.
+     * <p>
+     * The history of the session is discarded and the working directory is
+     * reset to the root. The disk that is left is released once no other
+     * session uses it, together with the files dropped from the history
+     * that a snapshot may still refer to.
+     * The disk that is left stays locked until the session has switched, so
+     * threads waiting for it go on to the new disk.
+     * </p>
+     *
+     * @param disk the new working disk, or null to leave the working disk only
+     * @param criteria the criteria of the session from then on
+     */
+    void attachDisk(VirtualDisk disk, Map<String, Criterion> criteria) {
+        if (disk != null) {
+            Lock lock = disk.lockExclusive();
+            try {
+                disk.attach(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+        VirtualDisk previous = workingDisk;
+        Lock lock = previous == null ? null : previous.lockExclusive();
+        try {
+            boolean last = previous == null || previous.detach(this);
+            while (!undoStack.isEmpty()) {
+                undoStack.pop().discard(true);
+            }
+            while (!redoStack.isEmpty()) {
+                redoStack.pop().discard(false);
+            }
+            if (previous != null && last) releaseDisk(previous);
+            criteriaMap = criteria;
+            workingDirectory = disk == null ? null : disk.getRootDirectory();
+            workingDisk = disk;
+        } finally {
+            if (lock != null) lock.unlock();
+        }
+    }
+
+    /**
+     * Locks the working disk for a command that does not change single directories.
+     * <p>
+     * Commands that change the disk as a whole, or the working directory,
+     * criteria or history of this session, take the exclusive disk lock.
+     * Commands that only read take the shared disk lock and every stripe
+     * for reading, so that scans run in parallel with each other but not
+     * with writers. The lock is retried until it is held on the disk that
+     * is still the working disk.
+     * </p>
+     *
+     * @param exclusive true for the exclusive lock, false to read
+     * @return the locks held, to be released with {@link #unlock(List)}; empty if no disk is loaded
+     * @see VirtualDisk
+     */
+    List<Lock> lockDisk(boolean exclusive) {
+        List<Lock> locks = new ArrayList<>();
+        if (lockWorkingDisk(locks, exclusive) && !exclusive) lockStripes(locks);
+        return locks;
+    }
+
+    // Adds every stripe of the working disk for reading, once the shared disk lock is held
+    private void lockStripes(List<Lock> locks) {
+        for (ReentrantReadWriteLock stripe : workingDisk.allStripes()) {
+            stripe.readLock().lock();
+            locks.add(stripe.readLock());
+        }
+    }
+
+    /**
+     * Takes the shared lock of the working disk for a command that changes single directories.
+     * <p>
+     * The command then resolves its directories and locks them with
+     * {@link #lockDirectories(List, Directory...)} before changing them.
+     * </p>
+     *
+     * @return the locks held, to be released with {@link #unlock(List)}; empty if no disk is loaded
+     */
+    List<Lock> lockForUpdate() {
+        List<Lock> locks = new ArrayList<>();
+        lockWorkingDisk(locks, false);
+        return locks;
+    }
+
+    /**
+     * Locks the stripes of the specified directories for writing, in lock order.
+     * <p>
+     * Nothing is taken while the exclusive disk lock is held, as that
+     * already covers every directory.
+     * </p>
+     *
+     * @param locks the locks held by the command, to which the stripes are added
+     * @param dirs the directories the command changes
+     */
+    void lockDirectories(List<Lock> locks, Directory... dirs) {
+        if (workingDisk.getLock().isWriteLocked()) return;
+        for (ReentrantReadWriteLock stripe : workingDisk.stripesOf(dirs)) {
+            stripe.writeLock().lock();
+            locks.add(stripe.writeLock());
+        }
+    }
+
+    // Takes the disk lock, retrying until it is held on the disk that is still the working disk
+    private boolean lockWorkingDisk(List<Lock> locks, boolean exclusive) {
+        while (true) {
+            VirtualDisk disk = workingDisk;
+            if (disk == null) return false;
+            Lock lock = exclusive ? disk.lockExclusive() : disk.lockShared();
+            if (disk == workingDisk) {
+                locks.add(lock);
+                return true;
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the locks taken for a command, in reverse order.
+     *
+     * @param locks the locks held by the command
+     */
+    static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * Pushes a command that has just been executed onto the undo stack and clears the redo stack.
+     * <p>
+     * Writers to different directories of the disk may record their commands
+     * together, in a different order than their changes were applied. A disk
+     * command is therefore placed below any commands on top of the stack
+     * that changed the disk after it, so that the stack is undone in version
+     * order.
+     * </p>
+     *
+     * @param cmd the command
+     */
+    void record(Command cmd) {
+        synchronized (undoStack) {
+            int at = undoStack.size();
+            if (cmd instanceof DiskCommand) {
+                DiskCommand change = (DiskCommand) cmd;
+                while (at > 0 && undoStack.get(at - 1) instanceof DiskCommand && ((DiskCommand) undoStack.get(at - 1)).follows(change)) {
+                    at--;
+                }
+            }
+            undoStack.add(at, cmd);
+            clearRedoStack();
+        }
+    }
+
+    /**
+     * Releases the stored content of every document on the specified disk and in its snapshots.
+     * <p>
+     * This is called when the last session leaves the disk, on {@code newDisk} or {@code load}.
+     * Documents dropped from the history while a snapshot could still read
+     * them are released here too.
+     * </p>
+     *
+     * @param disk the disk being dropped
+     */
+    static void releaseDisk(VirtualDisk disk) {
+        releaseContent(disk.getRootDirectory());
+        for (Snapshot snapshot : disk.getSnapshots()) {
+            releaseContent(disk.getRootDirectory(), snapshot.getId());
+        }
+        for (Document doc : disk.getOrphans()) {
+            doc.free();
+        }
+    }
+
+    /**
+     * Releases the stored content of every document in the specified file or subtree.
+     * <p>
+     * This is called once a file can no longer be reached from the disk or
+     * from the undo/redo history. The subtree is walked iteratively.
+     * </p>
+     *
+     * @param file the file or directory whose documents are released
+     */
+    static void releaseContent(File file) {
+        releaseContent(file, Snapshot.LIVE);
+    }
+
+    /**
+     * Releases the stored content of every document in the specified subtree as it was in a snapshot.
+     *
+     * @param file the file or directory whose documents are released
+     * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+     */
+    static void releaseContent(File file, int snapshot) {
+        Deque<File> pending = new ArrayDeque<>();
+        pending.push(file);
+        while (!pending.isEmpty()) {
+            File next = pending.pop();
+            if (next instanceof Document) {
+                ((Document) next).free();
+            } else if (next instanceof Directory && !((Directory) next).isCopyPending()) {
+                for (File child : ((Directory) next).getFiles(snapshot)) pending.push(child);
+            }
+        }
+    }
+
+    // Abstract File class
+    /**
+     * Abstract class representing a file in the system.
+     * <p>
+     * This class serves as a base for different types of files, providing
+     * common functionality such as name validation and retrieval. It
+     * includes an abstract method for getting the size of the file, which
+     * must be implemented by subclasses. Each file has a name and a
+     * reference to its parent directory.
+     * </p>
+     * <p>
+     * While a disk has snapshots, the state a file had when a snapshot was
+     * taken is kept in a short list of versions, one for each snapshot
+     * generation in which the file was changed. Reads that target a snapshot
+     * pick the oldest version recorded at or after the snapshot, or the
+     * current state if the file has not changed since.
+     * </p>
+     */
+    static abstract class File implements Serializable {
+        /**
+         *
+         */
+        protected volatile long name;
+        /**
+         *
+         */
+        public Directory parent;
+        private long order = -1; // -1 until the file is first added to a directory
+        private transient int epoch = -1;
+        private transient volatile List<Version> versions; // replaced, never changed, so readers need no lock
+        private transient CachedPath path;
+        /**
+         * Constructs a new File with the specified name.
+         *
+         * @param name the name of the file
+         * @throws Exception if the file name is invalid
+         */
+
+        public File(String name) throws Exception {
+            long packed = encodeName(name);
+            if (packed < 0) throw new Exception("Invalid file name.");
+            this.name = packed;
+        }
+        /**
+         * Returns the name of the file.
+         *
+         * @return the name of the file
+         */
+        public String getName() {
+            return decodeName(name);
+        }
+        /**
+         * Returns the name of the file in its packed form.
+         *
+         * @return the packed name of the file
+         * @see CVFS#encodeName(String)
+         */
+        public long getPackedName() {
+            return name;
+        }
+        /**
+         * Returns the place of the file in the listing of its directory.
+         * <p>
+         * Files added later have a greater order. The order is kept when the
+         * file is removed, so that it can be restored to the same place.
+         * </p>
+         *
+         * @return the order of the file in its directory
+         */
+        public long getOrder() {
+            return order;
+        }
+        /**
+         * Sets the name of the file.
+         *
+         * @param name the new name of the file
+         * @throws Exception if the new file name is invalid
+         */
+        public void setName(String name) throws Exception {
+            long packed = encodeName(name);
+            if (packed < 0) throw new Exception("Invalid file name.");
+            this.name = packed;
+            invalidatePath();
+        }
+        /**
+         * Returns the parent directory of this file.
+         *
+         * @return the parent directory, or null if the file is not in a directory
+         */
+        public Directory getParent() {
+            return parent;
+        }
+        /**
+         * Returns the absolute path of this file, such as "/a/b", or "/" for the root directory.
+         * <p>
+         * The path is cached together with a stamp of the disk that every
+         * rename or move on that disk advances. While no such change has
+         * happened, the cached path is returned as it is; otherwise the path
+         * is rebuilt from the nearest ancestor whose path is still current.
+         * The stamps are kept by the root directory, see {@link #makeRoot()};
+         * the path of a file outside such a tree is built but not cached.
+         * </p>
+         *
+         * @return the path of this file
+         */
+        public String getPath() {
+            CachedPath cached = path;
+            if (cached != null && cached.isCurrent()) return cached.path;
+            AtomicLong stamps = pathStamps();
+            long stamp = stamps == null ? 0 : stamps.get();
+            Deque<File> chain = new ArrayDeque<>();
+            String base = null;
+            for (File file = this; file != null; file = file.parent) {
+                cached = file.path;
+                if (cached != null && (cached.stamp < 0 || cached.stamp == stamp)) {
+                    base = cached.path;
+                    break;
+                }
+                chain.push(file);
+            }
+            for (File file : chain) {
+                base = base == null ? "/" : base.length() == 1 ? "/" + file.getName() : base + "/" + file.getName();
+                if (stamps != null) file.path = new CachedPath(stamps, stamp, base);
+            }
+            return base;
+        }
+        /**
+         * Makes this file the root of a disk, whose path is "/" and which
+         * keeps the stamp of the paths cached below it.
+         */
+        void makeRoot() {
+            path = new CachedPath(new AtomicLong(), -1, "/");
+        }
+
+        // The stamps of the disk, found through the nearest file with a cached path, as every cached path holds them
+        private AtomicLong pathStamps() {
+            for (File file = this; file != null; file = file.parent) {
+                CachedPath cached = file.path;
+                if (cached != null) return cached.stamps;
+            }
+            return null;
+        }
+
+        // Called after the name or parent changed, so that a reader that sees the new stamp
+        // also sees the change, and a path built from the old one is stored with an old stamp
+        private void invalidatePath() {
+            AtomicLong stamps = pathStamps();
+            path = null;
+            if (stamps != null) stamps.incrementAndGet();
+        }
+
+        // A path and the stamp it was built at, replaced as a whole so that
+        // readers sharing the disk lock never see one without the other.
+        // The root holds a path that never goes stale, with a negative stamp.
+        private static final class CachedPath {
+            private final AtomicLong stamps;
+            private final long stamp;
+            private final String path;
+
+            private CachedPath(AtomicLong stamps, long stamp, String path) {
+                this.stamps = stamps;
+                this.stamp = stamp;
+                this.path = path;
+            }
+
+            private boolean isCurrent() {
+                return stamp < 0 || stamps.get() == stamp;
+            }
+        }
+        /**
+         * Abstract method to get the size of the file.
+         *
+         * @return the size of the file in bytes
+         */
+        public abstract long getSize();
+        /**
+         * Creates a logically independent copy of the file as it was in the specified snapshot.
+         * <p>
+         * The copy shares stored content, and for a directory its files,
+         * with this file, so it takes constant time whatever the size of
+         * the subtree.
+         * </p>
+         *
+         * @param name the name of the copy
+         * @param snapshot the snapshot id the copy is taken from
+         * @return the copy, not yet added to any directory
+         * @throws Exception if the name is invalid
+         */
+        public abstract File copy(String name, int snapshot) throws Exception;
+        /**
+         * Returns the packed name the file had in the specified snapshot.
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @return the packed name of the file in that snapshot
+         */
+        public long getPackedName(int snapshot) {
+            long current = name; // read before the versions, which a writer records before changing the name
+            Version version = versionAt(snapshot);
+            return version == null ? current : version.name;
+        }
+        /**
+         * Returns the size the file had in the specified snapshot.
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @return the size of the file in that snapshot, in bytes
+         */
+        public long getSize(int snapshot) {
+            long current = getSize();
+            Version version = versionAt(snapshot);
+            return version == null ? current : version.size;
+        }
+        /**
+         * Marks a file that has just been created in the specified generation, so
+         * that changes made to it before the next snapshot are not recorded.
+         *
+         * @param generation the current snapshot generation of the disk
+         */
+        void markCreated(int generation) {
+            if (epoch < 0) epoch = generation;
+        }
+        /**
+         * Returns whether the file is known to be missing from the specified
+         * generation and every generation before it.
+         * <p>
+         * That holds for a file created after the generation that has not
+         * been changed since. A file that was already there keeps a version
+         * for the generation once it is changed, so it never qualifies.
+         * </p>
+         *
+         * @param generation a snapshot generation of the disk
+         * @return true if no snapshot up to the generation can read the file
+         */
+        boolean isNewerThan(int generation) {
+            return epoch > generation && versions == null;
+        }
+        /**
+         * Records the current state of the file as it was at the end of the
+         * previous generation, unless that has already been done in this one.
+         * <p>
+         * Writers to different directories preserve their common ancestors,
+         * so this is synchronized on the file. A snapshot reads the oldest
+         * version tagged at or after its id, so only the versions some id
+         * still read leads to are kept, at most one for each such id, and
+         * the rest are dropped on every call. Nothing is recorded if no
+         * snapshot would read the new version. The list is replaced rather
+         * than changed, so scans can read it while this runs.
+         * </p>
+         *
+         * @param generation the current snapshot generation of the disk
+         * @param reads the snapshot ids still read, in increasing order
+         */
+        synchronized void preserve(int generation, int[] reads) {
+            List<Version> history = versions;
+            boolean record = epoch < generation;
+            if (!record && (history == null || allRead(history, reads))) return;
+            List<Version> kept = new ArrayList<>(2);
+            int after = -1; // the tag of the version before, whose readers do not reach this one
+            if (history != null) {
+                for (Version version : history) {
+                    if (isRead(reads, after, version.tag)) kept.add(version);
+                    after = version.tag;
+                }
+            }
+            if (record && isRead(reads, after, generation - 1)) kept.add(new Version(generation - 1, name, getSize()));
+            versions = kept.isEmpty() ? null : kept;
+            epoch = generation;
+        }
+
+        private static boolean allRead(List<Version> history, int[] reads) {
+            int after = -1;
+            for (Version version : history) {
+                if (!isRead(reads, after, version.tag)) return false;
+                after = version.tag;
+            }
+            return true;
+        }
+
+        // Returns whether a snapshot read reaches the version with the tag, past the version tagged after
+        private static boolean isRead(int[] reads, int after, int tag) {
+            int i = Arrays.binarySearch(reads, after + 1);
+            if (i < 0) i = -i - 1;
+            return i < reads.length && reads[i] <= tag;
+        }
+
+        // Returns the versions recorded at or after the snapshot, oldest first, or null if the file is unchanged since
+        List<Version> versionsFrom(int snapshot) {
+            List<Version> history = versions;
+            if (history == null) return null;
+            for (int i = 0; i < history.size(); i++) {
+                if (history.get(i).tag >= snapshot) return history.subList(i, history.size());
+            }
+            return null;
+        }
+
+        private Version versionAt(int snapshot) {
+            List<Version> history = versionsFrom(snapshot);
+            return history == null ? null : history.get(0);
+        }
+
+        /**
+         * The state of a file up to and including the snapshot generation in its tag.
+         */
+        static class Version {
+            final int tag;
+            final long name;
+            final long size;
+            List<File> files; // null if the children did not change in this generation; set under the stripe of the directory
+
+            Version(int tag, long name, long size) {
+                this.tag = tag;
+                this.name = name;
+                this.size = size;
+            }
+        }
+    }
+
+    // Directory class
+    /**
+     * Represents a directory that can contain files and other directories.
+     * <p>
+     * This class extends the {@link File} class to provide functionality
+     * for managing a collection of files. It includes methods for adding,
+     * removing, and retrieving files. The total size of the directory,
+     * including all its contents, is cached and kept up to date as files
+     * are added and removed. Files are listed in the order they were added,
+     * and a removed file can be put back in its original place. They are
+     * kept in a {@link FileList}, which takes no space of its own while the
+     * directory is empty and switches to a chunked representation once the
+     * directory grows large. Once the directory holds more than
+     * {@link #INDEX_THRESHOLD} files, a hash index keyed by packed name
+     * finds, adds and removes files by name in constant time; below that,
+     * the few files are simply scanned. A second list keyed by packed name
+     * is only built for listings sorted by name, the first time one asks
+     * for it, and kept up to date from then on.
+     * </p>
+     * <p>
+     * A copy of a directory starts out with no files of its own and reads
+     * them from the snapshot of the source it was copied from. Reads go
+     * through the source without changing anything, see
+     * {@link #getFiles(int, int[])}. The files are copied, one level at a
+     * time, only when the copy or a file below it is about to change, see
+     * {@link #expand()}.
+     * </p>
+     * <p>
+     * A concurrent directory keeps its files in a {@link ConcurrentFileList}
+     * and its index in a {@link ConcurrentHashMap} from the start. Its files
+     * can then be looked up and listed without a lock while another thread
+     * changes them, and a new name is checked and taken in one atomic step.
+     * </p>
+     */
+    static class Directory extends File {
+        /**
+         * The number of files above which a directory keeps an index by name.
+         */
+        public static final int INDEX_THRESHOLD = 8;
+        private static final AtomicLongFieldUpdater<Directory> SIZE =
+                AtomicLongFieldUpdater.newUpdater(Directory.class, "size");
+        private Map<Long, File> index; // keyed by packed name; null for small directories
+        private transient volatile FileList byName; // keyed by packed name, which sorts like the name itself; null until listed by name
+        private FileList files; // keyed by order
+        private long nextOrder;
+        private final boolean concurrent;
+        private volatile long size; // updated without a lock by writers to any directory below
+        private transient volatile Directory source;
+        private transient int sourceSnapshot;
+        /**
+         * Constructs a new Directory with the specified name and parent directory.
+         *
+         * @param name the name of the directory
+         * @param parent the parent directory of the new directory
+         * @throws Exception if the directory name is invalid
+         */
+
+        public Directory(String name, Directory parent) throws Exception {
+            this(name, parent, parent != null && parent.concurrent);
+        }
+        /**
+         * Constructs a new Directory with the specified name, parent directory and kind of file lists.
+         *
+         * @param name the name of the directory
+         * @param parent the parent directory of the new directory
+         * @param concurrent true to keep the files in a {@link ConcurrentFileList}
+         * @throws Exception if the directory name is invalid
+         */
+        public Directory(String name, Directory parent, boolean concurrent) throws Exception {
+            super(name);
+            this.parent = parent;
+            this.concurrent = concurrent;
+            this.files = concurrent ? new ConcurrentFileList() : FileList.EMPTY;
+            this.index = concurrent ? new ConcurrentHashMap<>() : null;
+            this.byName = concurrent ? new ConcurrentFileList() : null;
+            this.size = BASE_FILE_SIZE;
+        }
+
+        private Directory(String name, Directory source, int snapshot) throws Exception {
+            super(name);
+            this.concurrent = source.concurrent;
+            this.source = source;
+            this.sourceSnapshot = snapshot;
+            this.size = source.getSize(snapshot);
+        }
+
+        @Override
+        public File copy(String name, int snapshot) throws Exception {
+            return new Directory(name, this, snapshot);
+        }
+        /**
+         * Returns whether this directory is a copy whose files have not been copied yet.
+         * <p>
+         * Such a directory holds no references to stored content of its own.
+         * </p>
+         *
+         * @return true if the files of this directory are still read from its source
+         */
+        public boolean isCopyPending() {
+            return source != null;
+        }
+        /**
+         * Returns whether the files of this directory can be read while they change.
+         *
+         * @return true if the files are kept in a {@link ConcurrentFileList}
+         */
+        public boolean isConcurrent() {
+            return concurrent;
+        }
+
+        /**
+         * Copies the files of the source, as they were in the snapshot, into this directory, if it is a pending copy.
+         * <p>
+         * Only paths that change this directory or a file below it call this,
+         * as the copied documents take references to their stored content.
+         * Commands holding the shared disk lock may get here together, so the
+         * copy is made once and published by clearing the volatile source.
+         * Readers that started before still read the source, which shows the
+         * same files.
+         * </p>
+         */
+        void expand() {
+            if (source == null) return;
+            synchronized (this) {
+                if (source == null) return;
+                files = concurrent ? new ConcurrentFileList() : FileList.EMPTY;
+                index = concurrent ? new ConcurrentHashMap<>() : null;
+                byName = concurrent ? new ConcurrentFileList() : null;
+                for (File copy : copySourceFiles()) link(copy, nextOrder++);
+                source = null;
+            }
+        }
+
+        // Copies the files this pending copy shows, as they were in the snapshot they are read in
+        private List<File> copySourceFiles() {
+            int[] at = new int[1];
+            List<File> copies = new ArrayList<>();
+            for (File file : getFiles(Snapshot.LIVE, at)) {
+                try {
+                    copies.add(file.copy(decodeName(file.getPackedName(at[0])), at[0]));
+                } catch (Exception e) {
+                    throw new IllegalStateException(e); // the names were valid in the source
+                }
+            }
+            return copies;
+        }
+        /**
+         * Returns the directory whose own files this directory shows in the specified snapshot.
+         * <p>
+         * That is this directory, unless it is a copy whose files have not
+         * been copied yet. Such a copy shows the files its source had in the
+         * snapshot it was copied from, and the sources are followed until a
+         * directory with files of its own.
+         * </p>
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @param at where the snapshot in which the returned directory is read is stored
+         * @return this directory, or the source its files are read from
+         */
+        Directory filesOwner(int snapshot, int[] at) {
+            Directory dir = this;
+            at[0] = snapshot;
+            for (Directory from = dir.source; from != null; from = dir.source) {
+                at[0] = dir.sourceSnapshot;
+                dir = from;
+            }
+            return dir;
+        }
+
+        // Finds a file by packed name, in the index or, for a small directory, by scanning its files
+        private File lookup(long name) {
+            if (index != null) return index.get(name);
+            for (File file : files) {
+                if (file.getPackedName() == name) return file;
+            }
+            return null;
+        }
+
+        // The file gets its place and parent first, so that readers without a lock never find it half linked
+        private void link(File file, long order) {
+            boolean moved = file.order >= 0; // a file added for the first time has no path to go stale
+            file.order = order;
+            file.parent = this;
+            if (moved) file.invalidatePath();
+            files = files.with(order, file);
+            if (index != null) {
+                index.put(file.getPackedName(), file);
+            } else if (files.size() > INDEX_THRESHOLD) {
+                index = new HashMap<>();
+                for (File each : files) index.put(each.getPackedName(), each);
+            }
+            if (byName != null) byName = byName.with(file.getPackedName(), file);
+        }
+
+        private void unlink(File file) {
+            files = files.without(file.order);
+            if (index != null) {
+                if (concurrent || files.size() > INDEX_THRESHOLD / 2) {
+                    index.remove(file.getPackedName());
+                } else {
+                    index = null;
+                }
+            }
+            if (byName != null) byName = index == null ? null : byName.without(file.getPackedName());
+            file.parent = null;
+        }
+
+        // Checks that the name is free and, in a concurrent directory, takes it in the same atomic step,
+        // with the parent already set for readers that find the file there
+        private boolean claimName(long name, File file) {
+            if (!concurrent) return lookup(name) == null;
+            Directory prevParent = file.parent;
+            file.parent = this;
+            if (index.putIfAbsent(name, file) == null) return true;
+            file.parent = prevParent;
+            return false;
+        }
+        /**
+         * Adds a file or directory to this directory.
+         *
+         * @param file the file or directory to add
+         * @throws Exception if a file with the same name already exists
+         */
+        public void addFile(File file) throws Exception {
+            expand();
+            if (!claimName(file.getPackedName(), file))
+                throw new Exception("File with the same name already exists.");
+            link(file, nextOrder++);
+            adjustSize(file.getSize());
+        }
+        /**
+         * Puts a file back at an earlier place in the listing of this directory.
+         *
+         * @param file the file to restore
+         * @param order the place the file had, as returned by {@link File#getOrder()}
+         * @throws Exception if the place is taken or a file with the same name already exists
+         */
+        public void restoreFile(File file, long order) throws Exception {
+            expand();
+            if (order >= nextOrder || files.get(order) != null) throw new Exception("File cannot be restored.");
+            if (!claimName(file.getPackedName(), file))
+                throw new Exception("File with the same name already exists.");
+            link(file, order);
+            adjustSize(file.getSize());
+        }
+        /**
+         * Removes a file or directory by name from this directory.
+         *
+         * @param name the name of the file to remove
+         * @throws Exception if the file is not found
+         */
+        public void removeFile(String name) throws Exception {
+            expand();
+            File toRemove = lookup(encodeName(name));
+            if (toRemove != null) {
+                unlink(toRemove);
+                adjustSize(-toRemove.getSize());
+            } else {
+                throw new Exception("File not found.");
+            }
+        }
+        /**
+         * Renames a file or directory in this directory, keeping its position in the listing.
+         *
+         * @param oldName the current name of the file
+         * @param newName the new name of the file
+         * @throws Exception if the file is not found, the new name is invalid,
+         *                   or a file with the new name already exists
+         */
+        public void renameFile(String oldName, String newName) throws Exception {
+            expand();
+            File file = lookup(encodeName(oldName));
+            if (file == null) throw new Exception("File not found.");
+            if (!claimName(encodeName(newName), file)) throw new Exception("A file with the new name already exists.");
+            long prevName = file.getPackedName();
+            file.setName(newName);
+            if (index != null) {
+                index.remove(prevName);
+                index.put(file.getPackedName(), file);
+            }
+            if (byName != null) byName = byName.without(prevName).with(file.getPackedName(), file);
+        }
+        /**
+         * Retrieves a file or directory by name from this directory.
+         *
+         * @param name the name of the file to retrieve
+         * @return the file with the specified name, or null if not found
+         */
+        public File getFile(String name) {
+            int[] at = new int[1];
+            Directory owner = filesOwner(Snapshot.LIVE, at);
+            return owner == this ? lookup(encodeName(name)) : owner.lookup(encodeName(name), at[0]);
+        }
+
+        // Finds a file by the packed name it had in a snapshot
+        private File lookup(long name, int snapshot) {
+            Collection<File> list = ownFiles(snapshot);
+            if (list == files) { // the files are as they were, though some may have been renamed since
+                File file = lookup(name);
+                if (file != null && file.getPackedName(snapshot) == name) return file;
+            }
+            for (File file : list) {
+                if (file.getPackedName(snapshot) == name) return file;
+            }
+            return null;
+        }
+        /**
+         * Returns the files in this directory in insertion order.
+         * <p>
+         * A pending copy returns the files of its source, see
+         * {@link #getFiles(int, int[])}.
+         * </p>
+         *
+         * @return the files contained in this directory
+         */
+        public Collection<File> getFiles() {
+            return getFiles(Snapshot.LIVE);
+        }
+        /**
+         * Returns the files in this directory sorted by name, starting at the specified position.
+         * <p>
+         * A directory with an index by name builds its list sorted by name
+         * on the first call and keeps it from then on, so later calls skip
+         * the files before the position without visiting them.
+         * </p>
+         *
+         * @param from the number of files to skip
+         * @return an iterator over the files in name order
+         */
+        public Iterator<File> getFilesByName(int from) {
+            int[] at = new int[1];
+            Directory owner = filesOwner(Snapshot.LIVE, at);
+            if (owner == this && index != null) return sortedByName().iterator(from);
+            List<File> sorted = new ArrayList<>(owner.ownFiles(at[0]));
+            sorted.sort(Comparator.comparingLong(file -> file.getPackedName(at[0])));
+            return sorted.subList(Math.min(from, sorted.size()), sorted.size()).iterator();
+        }
+
+        // Listings hold the stripe of the directory for reading and may get here together,
+        // so the list is built once and published through the volatile field. A concurrent
+        // directory changes without that stripe, so it keeps its list from the start.
+        private FileList sortedByName() {
+            FileList list = byName;
+            if (list != null) return list;
+            synchronized (this) {
+                if (byName == null) {
+                    List<File> sorted = new ArrayList<>(files);
+                    sorted.sort(Comparator.comparingLong(File::getPackedName));
+                    list = FileList.EMPTY;
+                    for (File file : sorted) list = list.with(file.getPackedName(), file); // appends only
+                    byName = list;
+                }
+                return byName;
+            }
+        }
+        /**
+         * Returns the files this directory held in the specified snapshot, starting at the specified position.
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @param from the number of files to skip
+         * @param at where the snapshot in which the files are read is stored, see {@link #getFiles(int, int[])}
+         * @return an iterator over the files in insertion order
+         * @see #getFilesByName(int)
+         */
+        public Iterator<File> getFiles(int snapshot, int from, int[] at) {
+            Collection<File> list = getFiles(snapshot, at);
+            if (list instanceof FileList) return ((FileList) list).iterator(from);
+            return ((List<File>) list).listIterator(Math.min(from, list.size()));
+        }
+        /**
+         * Returns the files this directory held in the specified snapshot.
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @return the files contained in this directory in that snapshot
+         * @see #getFiles(int, int[])
+         */
+        public Collection<File> getFiles(int snapshot) {
+            return getFiles(snapshot, new int[1]);
+        }
+        /**
+         * Returns the files this directory held in the specified snapshot, and the snapshot to read them in.
+         * <p>
+         * A copy whose files have not been copied yet shows the files its
+         * source had in the snapshot it was copied from, without copying
+         * them. Their names and sizes must then be read in that snapshot
+         * rather than in the one asked for, so the snapshot that applies to
+         * the returned files is stored in {@code at[0]}.
+         * </p>
+         *
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @param at where the snapshot in which the returned files are read is stored
+         * @return the files contained in this directory in that snapshot
+         * @see #filesOwner(int, int[])
+         */
+        public Collection<File> getFiles(int snapshot, int[] at) {
+            return filesOwner(snapshot, at).ownFiles(at[0]);
+        }
+
+        // The files of this directory itself in the snapshot, for a directory that is not a pending copy
+        private Collection<File> ownFiles(int snapshot) {
+            List<Version> history = versionsFrom(snapshot);
+            if (history != null) {
+                for (Version version : history) {
+                    if (version.files != null) return version.files;
+                }
+            }
+            return files;
+        }
+        /**
+         * Records the current state and files of this directory before its files are changed.
+         *
+         * @param generation the current snapshot generation of the disk
+         * @param reads the snapshot ids still read, in increasing order
+         * @see File#preserve(int, int[])
+         */
+        void preserveFiles(int generation, int[] reads) {
+            expand();
+            preserve(generation, reads);
+            List<Version> current = versionsFrom(generation - 1);
+            if (current != null && current.get(0).files == null) current.get(0).files = new ArrayList<>(files);
+        }
+
+        // A pending copy is saved as if its files had been copied, without copying them on the disk
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            if (source == null) {
+                out.defaultWriteObject();
+                return;
+            }
+            List<File> copies = copySourceFiles();
+            try {
+                FileList list = concurrent ? new ConcurrentFileList() : FileList.EMPTY;
+                Map<Long, File> names = concurrent ? new ConcurrentHashMap<>() : copies.size() > INDEX_THRESHOLD ? new HashMap<>() : null;
+                for (File copy : copies) {
+                    copy.order = list.size();
+                    copy.parent = this;
+                    list = list.with(copy.order, copy);
+                    if (names != null) names.put(copy.getPackedName(), copy);
+                }
+                ObjectOutputStream.PutField fields = out.putFields();
+                fields.put("index", names);
+                fields.put("files", list);
+                fields.put("nextOrder", (long) copies.size());
+                fields.put("concurrent", concurrent);
+                fields.put("size", size);
+                out.writeFields();
+            } finally {
+                for (File copy : copies) releaseContent(copy); // the saved documents hold their content in the stream
+            }
+        }
+
+        // A concurrent directory is read lock-free by name, so its name list is rebuilt up front
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            if (source == null && concurrent) {
+                byName = new ConcurrentFileList();
+                for (File file : files) byName = byName.with(file.getPackedName(), file);
+            }
+        }
+
+        /**
+         * Adds the specified delta to the cached size of this directory and all its ancestors.
+         *
+         * @param delta the change in size, in bytes
+         */
+        private void adjustSize(long delta) {
+            for (Directory dir = this; dir != null; dir = dir.parent) {
+                SIZE.addAndGet(dir, delta);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+    }
+
+    // FileList classes
+    /**
+     * The files of a directory, sorted by a key.
+     * <p>
+     * Each file is stored under a key, either its order in the directory,
+     * as returned by {@link File#getOrder()}, or its packed name, and
+     * iteration visits the files by increasing key. Changes return the list
+     * that holds the files from then on, so that a list can hand its files
+     * over to a representation better suited to its new size.
+     * </p>
+     */
+    static abstract class FileList extends AbstractCollection<File> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        /**
+         * The empty list, shared by all empty directories.
+         */
+        public static final FileList EMPTY = new EmptyFileList();
+        /**
+         * Returns the file stored under the specified key.
+         *
+         * @param key the key of the file
+         * @return the file, or null if there is none
+         */
+        public abstract File get(long key);
+        /**
+         * Stores a file under the specified key, which must not be taken.
+         *
+         * @param key the key of the file
+         * @param file the file to store
+         * @return the list holding the files from now on
+         */
+        public abstract FileList with(long key, File file);
+        /**
+         * Removes the file stored under the specified key, if there is one.
+         *
+         * @param key the key of the file
+         * @return the list holding the files from now on
+         */
+        public abstract FileList without(long key);
+        /**
+         * Returns an iterator over the files, starting at the specified position.
+         * <p>
+         * The files before the position are skipped without being visited.
+         * </p>
+         *
+         * @param from the number of files to skip
+         * @return an iterator over the files by increasing key
+         */
+        public abstract Iterator<File> iterator(int from);
+
+        @Override
+        public Iterator<File> iterator() {
+            return iterator(0);
+        }
+    }
+
+    // EmptyFileList class
+    /**
+     * A {@link FileList} holding no files.
+     * <p>
+     * There is a single instance, {@link FileList#EMPTY}, so an empty
+     * directory costs no more than a reference. Adding a file replaces it
+     * with a {@link SingleFileList}.
+     * </p>
+     */
+    static final class EmptyFileList extends FileList {
+        private static final long serialVersionUID = 1L;
+        private EmptyFileList() {
+        }
+
+        @Override
+        public File get(long key) {
+            return null;
+        }
+
+        @Override
+        public FileList with(long key, File file) {
+            return new SingleFileList(key, file);
+        }
+
+        @Override
+        public FileList without(long key) {
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public Iterator<File> iterator(int from) {
+            return Collections.emptyIterator();
+        }
+
+        private Object readResolve() {
+            return EMPTY;
+        }
+    }
+
+    // SingleFileList class
+    /**
+     * A {@link FileList} holding exactly one file in its own fields.
+     * <p>
+     * Adding a second file replaces it with an {@link ArrayFileList}, and
+     * removing the file replaces it with {@link FileList#EMPTY}.
+     * </p>
+     */
+    static final class SingleFileList extends FileList {
+        private static final long serialVersionUID = 1L;
+        private final long key;
+        private final File file;
+        /**
+         * Constructs a SingleFileList holding the specified file.
+         *
+         * @param key the key of the file
+         * @param file the file
+         */
+        public SingleFileList(long key, File file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        @Override
+        public File get(long key) {
+            return key == this.key ? file : null;
+        }
+
+        @Override
+        public FileList with(long key, File file) {
+            ArrayFileList list = new ArrayFileList(2);
+            list.insertAt(0, this.key, this.file);
+            return list.with(key, file);
+        }
+
+        @Override
+        public FileList without(long key) {
+            return key == this.key ? EMPTY : this;
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+
+        @Override
+        public Iterator<File> iterator(int from) {
+            return from == 0 ? Collections.singletonList(file).iterator() : Collections.emptyIterator();
+        }
+    }
+
+    // ArrayFileList class
+    /**
+     * A {@link FileList} backed by a pair of sorted arrays.
+     * <p>
+     * Lookups use binary search, and adding a file after all others only
+     * appends to the arrays. Once the list grows past {@link #MAX_SIZE}
+     * files, it is replaced by a {@link ChunkedFileList}, so that no single
+     * array has to be shifted or copied as a whole.
+     * </p>
+     */
+    static class ArrayFileList extends FileList {
+        private static final long serialVersionUID = 1L;
+        /**
+         * The largest number of files kept in a single pair of arrays.
+         */
+        public static final int MAX_SIZE = 1024;
+        private long[] keys;
+        private File[] files;
+        private int size;
+        /**
+         * Constructs a new, empty ArrayFileList.
+         */
+        public ArrayFileList() {
+            this(4);
+        }
+
+        ArrayFileList(int capacity) {
+            this.keys = new long[capacity];
+            this.files = new File[capacity];
+        }
+
+        @Override
+        public File get(long key) {
+            int index = indexOf(key);
+            return index < 0 ? null : files[index];
+        }
+
+        @Override
+        public FileList with(long key, File file) {
+            if (size == MAX_SIZE) return new ChunkedFileList(this).with(key, file);
+            insertAt(-indexOf(key) - 1, key, file);
+            return this;
+        }
+
+        @Override
+        public FileList without(long key) {
+            int index = indexOf(key);
+            if (index >= 0) removeAt(index);
+            return size == 0 ? EMPTY : this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<File> iterator(int from) {
+            return new Iterator<File>() {
+                private int next = from;
+
+                @Override
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                @Override
+                public File next() {
+                    if (next >= size) throw new NoSuchElementException();
+                    return files[next++];
+                }
+            };
+        }
+
+        // Returns the index of the key, or -(insertion point) - 1 if it is not present
+        int indexOf(long key) {
+            if (size > 0 && key > keys[size - 1]) return -size - 1;
+            return Arrays.binarySearch(keys, 0, size, key);
+        }
+
+        void insertAt(int index, long key, File file) {
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                files = Arrays.copyOf(files, capacity);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(files, index, files, index + 1, size - index);
+            keys[index] = key;
+            files[index] = file;
+            size++;
+        }
+
+        void removeAt(int index) {
+            size--;
+            System.arraycopy(keys, index + 1, keys, index, size - index);
+            System.arraycopy(files, index + 1, files, index, size - index);
+            files[size] = null;
+        }
+
+        long firstKey() {
+            return keys[0];
+        }
+
+        // Moves the upper half of this list into a new list
+        ArrayFileList split() {
+            int half = size / 2;
+            ArrayFileList upper = new ArrayFileList(keys.length);
+            System.arraycopy(keys, half, upper.keys, 0, size - half);
+            System.arraycopy(files, half, upper.files, 0, size - half);
+            upper.size = size - half;
+            Arrays.fill(files, half, size, null);
+            size = half;
+            return upper;
+        }
+
+        // Moves all files of the next list to the end of this one
+        void absorb(ArrayFileList next) {
+            copyFrom(next, 0, next.size);
+        }
+
+        // Appends a range of files from a list whose keys all follow the keys of this one
+        void copyFrom(ArrayFileList list, int from, int count) {
+            if (size + count > keys.length) {
+                keys = Arrays.copyOf(keys, size + count);
+                files = Arrays.copyOf(files, size + count);
+            }
+            System.arraycopy(list.keys, from, keys, size, count);
+            System.arraycopy(list.files, from, files, size, count);
+            size += count;
+        }
+    }
+
+    // ChunkedFileList class
+    /**
+     * A {@link FileList} for large directories, made of a sequence of sorted chunks.
+     * <p>
+     * Every chunk holds at most {@link #CHUNK_SIZE} files, and the chunks
+     * follow each other in order. A file is located by a binary search over
+     * the first keys of the chunks followed by one within its chunk, so
+     * adding or removing a file shifts at most one chunk and the list of
+     * chunks, never the whole directory. Files added after all others fill
+     * the last chunk and then start a new one. A full chunk that receives a
+     * file in its middle is split in two, and a chunk that becomes small is
+     * merged with its successor. When the list shrinks well below
+     * {@link ArrayFileList#MAX_SIZE}, it turns back into an
+     * {@link ArrayFileList}.
+     * </p>
+     */
+    static class ChunkedFileList extends FileList {
+        private static final long serialVersionUID = 1L;
+        /**
+         * The largest number of files in a chunk.
+         */
+        public static final int CHUNK_SIZE = 512;
+        private final List<ArrayFileList> chunks = new ArrayList<>();
+        private int size;
+        /**
+         * Constructs a ChunkedFileList holding the files of the specified list.
+         *
+         * @param list the list whose files are taken over
+         */
+        public ChunkedFileList(ArrayFileList list) {
+            for (int i = 0; i < list.size(); i += CHUNK_SIZE) {
+                ArrayFileList chunk = new ArrayFileList(CHUNK_SIZE);
+                chunk.copyFrom(list, i, Math.min(CHUNK_SIZE, list.size() - i));
+                chunks.add(chunk);
+            }
+            size = list.size();
+        }
+
+        @Override
+        public File get(long key) {
+            return chunks.isEmpty() ? null : chunks.get(chunkOf(key)).get(key);
+        }
+
+        @Override
+        public FileList with(long key, File file) {
+            int chunkIndex = chunkOf(key);
+            ArrayFileList chunk = chunks.get(chunkIndex);
+            int index = -chunk.indexOf(key) - 1;
+            if (chunk.size() == CHUNK_SIZE) {
+                if (index == CHUNK_SIZE && chunkIndex == chunks.size() - 1) {
+                    chunk = new ArrayFileList(CHUNK_SIZE);
+                    chunks.add(chunk);
+                    index = 0;
+                } else {
+                    ArrayFileList upper = chunk.split();
+                    chunks.add(chunkIndex + 1, upper);
+                    if (index > chunk.size()) {
+                        index -= chunk.size();
+                        chunk = upper;
+                    }
+                }
+            }
+            chunk.insertAt(index, key, file);
+            size++;
+            return this;
+        }
+
+        @Override
+        public FileList without(long key) {
+            if (chunks.isEmpty()) return this;
+            int chunkIndex = chunkOf(key);
+            ArrayFileList chunk = chunks.get(chunkIndex);
+            int index = chunk.indexOf(key);
+            if (index < 0) return this;
+            chunk.removeAt(index);
+            size--;
+            if (size < ArrayFileList.MAX_SIZE / 4) {
+                ArrayFileList list = new ArrayFileList(ArrayFileList.MAX_SIZE / 2);
+                for (ArrayFileList each : chunks) list.copyFrom(each, 0, each.size());
+                return list;
+            }
+            if (chunk.size() == 0) {
+                chunks.remove(chunkIndex);
+            } else if (chunkIndex + 1 < chunks.size() && chunk.size() + chunks.get(chunkIndex + 1).size() <= CHUNK_SIZE / 2) {
+                chunk.absorb(chunks.remove(chunkIndex + 1));
+            }
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<File> iterator(int from) {
+            int skipped = 0;
+            int first = 0;
+            while (first < chunks.size() && skipped + chunks.get(first).size() <= from) {
+                skipped += chunks.get(first++).size();
+            }
+            int start = first;
+            Iterator<File> head = first < chunks.size() ? chunks.get(first).iterator(from - skipped) : Collections.emptyIterator();
+            return new Iterator<File>() {
+                private int chunk = start + 1;
+                private Iterator<File> files = head;
+
+                @Override
+                public boolean hasNext() {
+                    while (!files.hasNext() && chunk < chunks.size()) {
+                        files = chunks.get(chunk++).iterator();
+                    }
+                    return files.hasNext();
+                }
+
+                @Override
+                public File next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return files.next();
+                }
+            };
+        }
+
+        // Returns the index of the last chunk starting at or before the key, or 0 if there is none
+        private int chunkOf(long key) {
+            int low = 0;
+            int high = chunks.size() - 1;
+            if (chunks.get(high).firstKey() <= key) return high;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (chunks.get(mid).firstKey() <= key) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    // ConcurrentFileList class
+    /**
+     * A {@link FileList} that can be read while it is being changed.
+     * <p>
+     * The files are kept in a {@link ConcurrentSkipListMap}, so lookups take
+     * no lock and a key is claimed with {@link #putIfAbsent(long, File)} in
+     * one atomic step. Iteration is weakly consistent: it never throws
+     * {@link ConcurrentModificationException}, and visits every file that
+     * stays in the list while it runs. Unlike the other lists, this one is
+     * changed in place and never hands its files over to another
+     * representation, so readers can keep a reference to it.
+     * </p>
+     */
+    static final class ConcurrentFileList extends FileList {
+        private static final long serialVersionUID = 1L;
+        private final ConcurrentSkipListMap<Long, File> files = new ConcurrentSkipListMap<>();
+        private final AtomicInteger size = new AtomicInteger(); // the map counts its entries one by one
+
+        @Override
+        public File get(long key) {
+            return files.get(key);
+        }
+        /**
+         * Stores a file under the specified key unless the key is already taken.
+         *
+         * @param key the key of the file
+         * @param file the file to store
+         * @return the file already stored under the key, or null if the file was stored
+         */
+        public File putIfAbsent(long key, File file) {
+            File present = files.putIfAbsent(key, file);
+            if (present == null) size.incrementAndGet();
+            return present;
+        }
+
+        @Override
+        public FileList with(long key, File file) {
+            putIfAbsent(key, file);
+            return this;
+        }
+
+        @Override
+        public FileList without(long key) {
+            if (files.remove(key) != null) size.decrementAndGet();
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return size.get();
+        }
+
+        @Override
+        public Iterator<File> iterator(int from) {
+            Iterator<File> iterator = Collections.unmodifiableCollection(files.values()).iterator();
+            for (int i = 0; i < from && iterator.hasNext(); i++) iterator.next();
+            return iterator;
+        }
+    }
+
+    // Document class
+    /**
+     * Represents a document file in the system.
+     * <p>
+     * This class extends the {@link File} class to provide functionality
+     * specific to document files, including type validation and content management.
+     * It includes methods for retrieving the document type and calculating the
+     * size of the document based on its content.
+     * </p>
+     */
+
+    static class Document extends File {
+        private DocType type;
+        private transient long contentHandle;
+        private int contentLength;
+        /**
+         * Constructs a new Document with the specified name, type, and content.
+         *
+         * @param name the name of the document
+         * @param type the type of the document
+         * @param content the content of the document
+         * @throws Exception if the document name is invalid or the document type is not allowed
+         */
+        public Document(String name, DocType type, String content) throws Exception {
+            super(name);
+            if (type == null) throw new Exception("Invalid document type.");
+            this.type = type;
+            this.contentHandle = contentStore.store(content);
+            this.contentLength = content.length();
+        }
+
+        private Document(String name, Document source) throws Exception {
+            super(name);
+            this.type = source.type;
+            this.contentHandle = contentStore.retain(source.contentHandle, source.contentLength);
+            this.contentLength = source.contentLength;
+        }
+
+        @Override
+        public File copy(String name, int snapshot) throws Exception {
+            return new Document(name, this);
+        }
+        /**
+         * Returns the type of the document.
+         *
+         * @return the document type
+         */
+        public DocType getType() {
+            return type;
+        }
+        /**
+         * Returns the length of the document's content.
+         *
+         * @return the length of the content in characters
+         */
+        public int getContentLength() {
+            return contentLength;
+        }
+        /**
+         * Returns the content of the document, read back from the content store.
+         *
+         * @return the content of the document
+         */
+        public String getContent() {
+            return contentStore.load(contentHandle, contentLength);
+        }
+        /**
+         * Releases the stored content of this document.
+         * <p>
+         * The document must no longer be reachable from the disk or the
+         * undo/redo history. Calling this method more than once has no effect.
+         * </p>
+         */
+        public void free() {
+            contentStore.free(contentHandle, contentLength);
+            contentHandle = ContentStore.NONE;
+        }
+
+        @Override
+        public long getSize() {
+            return BASE_FILE_SIZE + contentLength * 2L;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeObject(getContent());
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            contentHandle = contentStore.store((String) in.readObject());
+        }
+    }
+
+    // ContentStore class
+    /**
+     * Stores document content outside the Java heap.
+     * <p>
+     * Content is written as UTF-16 characters into direct {@link ByteBuffer}
+     * chunks, so a stored body takes exactly the two bytes per character that
+     * {@link Document#getSize()} charges for it. Callers keep only a handle and
+     * the length in characters. Freed blocks are kept in per-size free lists and
+     * reused by later allocations of the same size; bodies larger than a chunk
+     * get a buffer of their own, which is dropped when it is freed.
+     * </p>
+     * <p>
+     * Content is addressed by value: storing a body that is already present
+     * returns the existing handle and increments its reference count, so
+     * identical bodies are kept once. The store tracks logical bytes (every
+     * stored body counted once per handle) and physical bytes (every distinct
+     * body counted once) separately.
+     * </p>
+     * <p>
+     * Bodies of at least the compression threshold are deflated before they
+     * are written, provided that makes them smaller, and inflated again when
+     * read. A few recently inflated bodies are cached so repeated reads do not
+     * inflate them again.
+     * </p>
+     * <p>
+     * One store serves every disk and session. The index of bodies by hash
+     * is split into stripes, each with its own lock, which is held only to
+     * look a hash up and to change reference counts. Hashing, compressing,
+     * writing a new body and comparing it with the bodies already stored all
+     * happen outside any lock: the bodies compared are referenced meanwhile,
+     * so they cannot be freed, and a new body is only added once every body
+     * stored under its hash since has been compared too. Space is handed out
+     * under a lock of its own, and stored bodies are read without one.
+     * </p>
+     */
+    static class ContentStore {
+        /**
+         * The handle of empty content, which occupies no storage.
+         */
+        public static final long NONE = -1;
+        private static final int CHUNK_SIZE = 1 << 20;
+        private static final int ALIGNMENT = 16;
+        private static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+        private static final int INFLATED_CACHE_SIZE = 16;
+        private static final int INDEX_STRIPES = 16;
+        private final List<ByteBuffer> chunks = new ArrayList<>(); // also locks the free lists and the current chunk
+        private final Map<Integer, Deque<Long>> freeBlocks = new HashMap<>();
+        private final Deque<Integer> freeChunks = new ArrayDeque<>();
+        private final List<Map<Integer, List<Blob>>> blobsByHash = new ArrayList<>(); // each stripe locked by itself
+        private final Map<Long, Blob> blobsByHandle = new ConcurrentHashMap<>();
+        private final Map<Blob, String> inflatedCache = new LinkedHashMap<Blob, String>(INFLATED_CACHE_SIZE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Blob, String> eldest) {
+                return size() > INFLATED_CACHE_SIZE;
+            }
+        };
+        private int currentChunk = -1;
+        private int currentOffset = CHUNK_SIZE;
+        private volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        private final AtomicLong logicalBytes = new AtomicLong();
+        private final AtomicLong uniqueBytes = new AtomicLong();
+        private final AtomicLong physicalBytes = new AtomicLong();
+        private final AtomicInteger compressedBodies = new AtomicInteger();
+        private final AtomicLong compressedUniqueBytes = new AtomicLong();
+        private final AtomicLong compressedPhysicalBytes = new AtomicLong();
+
+        ContentStore() {
+            for (int i = 0; i < INDEX_STRIPES; i++) blobsByHash.add(new HashMap<>());
+        }
+
+        // A distinct stored body and the number of handles given out for it, counted under the stripe of its hash
+        private static class Blob {
+            private final long handle;
+            private final ByteBuffer chunk;
+            private final int hash;
+            private final int length;
+            private final int storedBytes;
+            private final boolean compressed;
+            private int refCount;
+
+            private Blob(long handle, ByteBuffer chunk, int hash, int length, int storedBytes, boolean compressed) {
+                this.handle = handle;
+                this.chunk = chunk;
+                this.hash = hash;
+                this.length = length;
+                this.storedBytes = storedBytes;
+                this.compressed = compressed;
+                this.refCount = 1;
+            }
+        }
+        /**
+         * Stores the specified content, sharing the storage of an identical body if one is present.
+         *
+         * @param content the content to store
+         * @return a handle to the stored content
+         */
+        public long store(String content) {
+            if (content.isEmpty()) return NONE;
+            int hash = content.hashCode();
+            Map<Integer, List<Blob>> stripe = stripeOf(hash);
+            List<Blob> compared = new ArrayList<>(1);
+            Blob written = null; // the body written for this content once no stored one matched it
+            while (true) {
+                List<Blob> candidates = new ArrayList<>(1);
+                synchronized (stripe) {
+                    for (Blob blob : stripe.getOrDefault(hash, Collections.emptyList())) {
+                        if (blob.length == content.length() && !compared.contains(blob)) {
+                            blob.refCount++; // so that it is not freed while it is compared
+                            candidates.add(blob);
+                        }
+                    }
+                    if (candidates.isEmpty() && written != null) {
+                        stripe.computeIfAbsent(hash, k -> new ArrayList<>(1)).add(written);
+                        blobsByHandle.put(written.handle, written);
+                        count(written);
+                        logicalBytes.addAndGet(content.length() * 2L);
+                        return written.handle;
+                    }
+                }
+                Blob match = null;
+                for (Blob blob : candidates) {
+                    if (match == null && matches(blob, content)) {
+                        match = blob; // the reference taken for the comparison is the one handed out
+                    } else {
+                        release(blob);
+                    }
+                }
+                if (match != null) {
+                    if (written != null) freeBlock(written.handle, written.storedBytes);
+                    logicalBytes.addAndGet(content.length() * 2L);
+                    return match.handle;
+                }
+                compared.addAll(candidates);
+                if (written == null) written = write(content, hash);
+            }
+        }
+        /**
+         * Takes another reference to stored content, without copying it.
+         *
+         * @param handle the handle returned by {@link #store(String)}
+         * @param length the length of the content in characters
+         * @return the same handle, which must be freed separately
+         */
+        public long retain(long handle, int length) {
+            if (handle == NONE) return NONE;
+            logicalBytes.addAndGet(length * 2L);
+            Blob blob = blobsByHandle.get(handle);
+            Map<Integer, List<Blob>> stripe = stripeOf(blob.hash);
+            synchronized (stripe) {
+                blob.refCount++;
+            }
+            return handle;
+        }
+        /**
+         * Reads stored content back into a string.
+         *
+         * @param handle the handle returned by {@link #store(String)}
+         * @param length the length of the content in characters
+         * @return the stored content
+         */
+        public String load(long handle, int length) {
+            if (handle == NONE) return "";
+            return load(blobsByHandle.get(handle));
+        }
+        /**
+         * Gives up one reference to stored content, returning its storage once no references remain.
+         *
+         * @param handle the handle returned by {@link #store(String)}
+         * @param length the length of the content in characters
+         */
+        public void free(long handle, int length) {
+            if (handle == NONE) return;
+            logicalBytes.addAndGet(-length * 2L);
+            release(blobsByHandle.get(handle));
+        }
+        /**
+         * Sets the size from which newly stored bodies are compressed.
+         *
+         * @param threshold the minimum uncompressed size in bytes
+         */
+        public void setCompressionThreshold(int threshold) {
+            this.compressionThreshold = threshold;
+        }
+        /**
+         * Returns the size from which newly stored bodies are compressed.
+         *
+         * @return the minimum uncompressed size in bytes
+         */
+        public int getCompressionThreshold() {
+            return compressionThreshold;
+        }
+        /**
+         * Returns the total size of all stored content as seen by its holders.
+         *
+         * @return the logical size in bytes
+         */
+        public long getLogicalBytes() {
+            return logicalBytes.get();
+        }
+        /**
+         * Returns the uncompressed size of the distinct content kept in the store.
+         *
+         * @return the deduplicated size in bytes
+         */
+        public long getUniqueBytes() {
+            return uniqueBytes.get();
+        }
+        /**
+         * Returns the size of the distinct content actually kept in the store, after compression.
+         *
+         * @return the physical size in bytes
+         */
+        public long getPhysicalBytes() {
+            return physicalBytes.get();
+        }
+        /**
+         * Returns the number of distinct bodies kept in compressed form.
+         *
+         * @return the number of compressed bodies
+         */
+        public int getCompressedBodies() {
+            return compressedBodies.get();
+        }
+        /**
+         * Returns the ratio of uncompressed to compressed size over all compressed bodies.
+         *
+         * @return the compression ratio, or 1 if no body is compressed
+         */
+        public double getCompressionRatio() {
+            long physical = compressedPhysicalBytes.get();
+            return physical == 0 ? 1 : (double) compressedUniqueBytes.get() / physical;
+        }
+
+        private Map<Integer, List<Blob>> stripeOf(int hash) {
+            return blobsByHash.get((hash ^ (hash >>> 16)) & (INDEX_STRIPES - 1));
+        }
+
+        // Drops one reference to a body, and the body itself with the last one
+        private void release(Blob blob) {
+            Map<Integer, List<Blob>> stripe = stripeOf(blob.hash);
+            synchronized (stripe) {
+                if (--blob.refCount > 0) return;
+                List<Blob> candidates = stripe.get(blob.hash);
+                candidates.remove(blob);
+                if (candidates.isEmpty()) stripe.remove(blob.hash);
+                blobsByHandle.remove(blob.handle);
+            }
+            uniqueBytes.addAndGet(-blob.length * 2L);
+            physicalBytes.addAndGet(-blob.storedBytes);
+            if (blob.compressed) {
+                synchronized (inflatedCache) {
+                    inflatedCache.remove(blob);
+                }
+                compressedBodies.decrementAndGet();
+                compressedUniqueBytes.addAndGet(-blob.length * 2L);
+                compressedPhysicalBytes.addAndGet(-blob.storedBytes);
+            }
+            freeBlock(blob.handle, blob.storedBytes);
+        }
+
+        // Adds a body that has just been indexed to the sizes of the distinct content
+        private void count(Blob blob) {
+            uniqueBytes.addAndGet(blob.length * 2L);
+            physicalBytes.addAndGet(blob.storedBytes);
+            if (blob.compressed) {
+                compressedBodies.incrementAndGet();
+                compressedUniqueBytes.addAndGet(blob.length * 2L);
+                compressedPhysicalBytes.addAndGet(blob.storedBytes);
+            }
+        }
+
+        // Writes the content into space of its own, deflated if that makes it smaller; the body is not indexed yet
+        private Blob write(String content, int hash) {
+            int rawBytes = content.length() * 2;
+            byte[] deflated = rawBytes >= compressionThreshold ? deflate(content) : null;
+            boolean compressed = deflated != null && deflated.length < rawBytes;
+            int storedBytes = compressed ? deflated.length : rawBytes;
+            long handle;
+            ByteBuffer chunk;
+            synchronized (chunks) {
+                handle = allocate(blockSize(storedBytes));
+                chunk = chunks.get(chunkOf(handle));
+            }
+            int offset = offsetOf(handle);
+            if (compressed) {
+                ByteBuffer block = chunk.duplicate();
+                block.position(offset);
+                block.put(deflated);
+            } else {
+                for (int i = 0; i < content.length(); i++) {
+                    chunk.putChar(offset + i * 2, content.charAt(i));
+                }
+            }
+            return new Blob(handle, chunk, hash, content.length(), storedBytes, compressed);
+        }
+
+        private String load(Blob blob) {
+            if (blob.compressed) {
+                String content;
+                synchronized (inflatedCache) {
+                    content = inflatedCache.get(blob);
+                }
+                if (content == null) {
+                    content = inflate(blob);
+                    synchronized (inflatedCache) {
+                        inflatedCache.put(blob, content);
+                    }
+                }
+                return content;
+            }
+            int offset = offsetOf(blob.handle);
+            char[] chars = new char[blob.length];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = blob.chunk.getChar(offset + i * 2);
+            }
+            return new String(chars);
+        }
+
+        private boolean matches(Blob blob, String content) {
+            if (blob.length != content.length()) return false;
+            if (blob.compressed) return load(blob).equals(content);
+            int offset = offsetOf(blob.handle);
+            for (int i = 0; i < blob.length; i++) {
+                if (blob.chunk.getChar(offset + i * 2) != content.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        // Characters are split into bytes by hand so that unpaired surrogates survive the round trip
+        private static byte[] deflate(String content) {
+            byte[] raw = new byte[content.length() * 2];
+            for (int i = 0; i < content.length(); i++) {
+                char c = content.charAt(i);
+                raw[i * 2] = (byte) (c >>> 8);
+                raw[i * 2 + 1] = (byte) c;
+            }
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+                byte[] buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private String inflate(Blob blob) {
+            byte[] deflated = new byte[blob.storedBytes];
+            ByteBuffer chunk = blob.chunk.duplicate();
+            chunk.position(offsetOf(blob.handle));
+            chunk.get(deflated);
+            byte[] raw = new byte[blob.length * 2];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(deflated);
+                int read = 0;
+                while (read < raw.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, read, raw.length - read);
+                    // A truncated or corrupted block stops producing output without ever finishing
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new DataFormatException("Unexpected end of compressed content.");
+                    read += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupted document content.", e);
+            } finally {
+                inflater.end();
+            }
+            char[] chars = new char[blob.length];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (((raw[i * 2] & 0xff) << 8) | (raw[i * 2 + 1] & 0xff));
+            }
+            return new String(chars);
+        }
+
+        // Returns a block to the free lists, or drops the buffer of a body larger than a chunk
+        private void freeBlock(long handle, int storedBytes) {
+            int size = blockSize(storedBytes);
+            synchronized (chunks) {
+                if (size > CHUNK_SIZE) {
+                    chunks.set(chunkOf(handle), null);
+                    freeChunks.push(chunkOf(handle));
+                } else {
+                    freeBlocks.computeIfAbsent(size, k -> new ArrayDeque<>()).push(handle);
+                }
+            }
+        }
+
+        // Called with the chunks locked
+        private long allocate(int size) {
+            if (size > CHUNK_SIZE) return handle(newChunk(size), 0);
+            Deque<Long> blocks = freeBlocks.get(size);
+            if (blocks != null && !blocks.isEmpty()) return blocks.pop();
+            if (currentOffset + size > CHUNK_SIZE) {
+                currentChunk = newChunk(CHUNK_SIZE);
+                currentOffset = 0;
+            }
+            long handle = handle(currentChunk, currentOffset);
+            currentOffset += size;
+            return handle;
+        }
+
+        private int newChunk(int capacity) {
+            ByteBuffer chunk = ByteBuffer.allocateDirect(capacity);
+            if (!freeChunks.isEmpty()) {
+                int index = freeChunks.pop();
+                chunks.set(index, chunk);
+                return index;
+            }
+            chunks.add(chunk);
+            return chunks.size() - 1;
+        }
+
+        private static int blockSize(int bytes) {
+            return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
+
+        private static long handle(int chunk, int offset) {
+            return ((long) chunk << 32) | offset;
+        }
+
+        private static int chunkOf(long handle) {
+            return (int) (handle >>> 32);
+        }
+
+        private static int offsetOf(long handle) {
+            return (int) handle;
+        }
+    }
+
+    // DocType enum
+    /**
+     * Enumerates the document types supported by the system.
+     * <p>
+     * Each document refers to one of these shared constants instead of
+     * holding its own copy of the type string, so type checks are identity
+     * comparisons.
+     * </p>
+     */
+    enum DocType {
+        TXT("txt"),
+        JAVA("java"),
+        HTML("html"),
+        CSS("css");
+
+        private static final DocType[] TYPES = values();
+        private final String extension;
+
+        DocType(String extension) {
+            this.extension = extension;
+        }
+        /**
+         * Returns the document type with the specified name.
+         *
+         * @param name the name of the type, e.g. "txt"
+         * @return the matching document type, or null if the type is not allowed
+         */
+        public static DocType fromName(String name) {
+            for (DocType type : TYPES) {
+                if (type.extension.equals(name)) return type;
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return extension;
+        }
+    }
+
+    // VirtualDisk class
+    /**
+     * Represents a virtual disk that can hold files and directories.
+     * <p>
+     * This class encapsulates a virtual disk with a maximum size limit
+     * and a root directory. It keeps a running count of the bytes in use, and
+     * every addition is reserved against that count before the directory
+     * is changed, so a write that does not fit leaves the disk untouched.
+     * </p>
+     * <p>
+     * Taking a snapshot only records the current generation and starts a
+     * new one. From then on, the first change to a file in a generation
+     * records its previous state, and a directory whose files change also
+     * records its previous list of files, so each change copies no more
+     * than the directories on the path to the root.
+     * </p>
+     * <p>
+     * Changes to a single directory run in parallel: the caller holds the
+     * shared disk lock and the stripe lock of each directory it changes, so
+     * writers to directories on different stripes do not wait for each
+     * other. The bytes in use and the sizes of directories are updated
+     * atomically, without a lock. Deleting, renaming or moving a directory
+     * affects its whole subtree, as do copies, snapshots and undo, so those
+     * take the exclusive disk lock instead. Scans take the shared disk lock
+     * and every stripe for reading, and run in parallel with each other.
+     * A scan of the current tree can instead {@link #pin()} it as an
+     * unnamed snapshot and walk that with no disk lock held, so writers go
+     * on meanwhile; each change takes the stripes of the directories it
+     * changes even under the exclusive lock, so the walk never reads a
+     * directory in the middle of a change.
+     * Locks are always taken in this order: the disk lock, then stripes in
+     * increasing index, as listed by {@link #stripesOf(Directory...)}, so a
+     * move between two directories cannot deadlock with another one going
+     * the other way. Lookups take the stripe of one directory at a time and
+     * release it before the next. On a disk whose directories are
+     * concurrent, lookups and listings of a single directory take no stripe
+     * at all.
+     * </p>
+     */
+    static class VirtualDisk implements Serializable {
+        private static final int STRIPES = 64;
+        private static final AtomicLongFieldUpdater<VirtualDisk> USED_BYTES =
+                AtomicLongFieldUpdater.newUpdater(VirtualDisk.class, "usedBytes");
+        private long maxSize;
+        private volatile long usedBytes;
+        private Directory rootDirectory;
+        private transient volatile long version;
+        private transient long lastVersion;
+        private transient DentryCache dentries;
+        private transient int generation;
+        private transient long closedAt; // the version of the disk when the last generation was closed, or -1
+        private transient volatile int[] reads; // the snapshot ids still read, kept or pinned, in increasing order
+        private transient TreeSet<Integer> kept; // the ids kept for good, by named snapshots and copied directories
+        private transient int lastKept; // the newest id kept for good, or -1
+        private transient List<Document> orphans; // dropped from the history while a kept generation may still read them
+        private transient TreeMap<Integer, Integer> pins; // the ids pinned by running scans, with the number of scans on each
+        private transient Map<String, Snapshot> snapshots;
+        private transient List<CVFS> sessions;
+        private transient StampedLock lock;
+        private transient ReentrantLock gate; // held by a thread waiting for the exclusive lock, so that new readers queue behind it
+        private transient ReentrantReadWriteLock[] stripes;
+        /**
+         * Constructs a new VirtualDisk with a specified maximum size.
+         *
+         * @param maxSize the maximum size of the virtual disk in bytes
+         * @throws Exception if the maximum size is less than or equal to zero
+         */
+        public VirtualDisk(long maxSize) throws Exception {
+            this(maxSize, false);
+        }
+        /**
+         * Constructs a new VirtualDisk with a specified maximum size and kind of directories.
+         *
+         * @param maxSize the maximum size of the virtual disk in bytes
+         * @param concurrent true to keep the files of every directory in a {@link ConcurrentFileList}
+         * @throws Exception if the maximum size is less than or equal to zero
+         */
+        public VirtualDisk(long maxSize, boolean concurrent) throws Exception {
+            this.maxSize = maxSize;
+            this.rootDirectory = new Directory("root", null, concurrent);
+            this.usedBytes = rootDirectory.getSize();
+            initTransients();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            initTransients();
+        }
+
+        // Created up front, as readers holding the shared lock must not race to create them
+        private void initTransients() {
+            rootDirectory.makeRoot();
+            dentries = new DentryCache();
+            closedAt = -1;
+            reads = new int[0];
+            kept = new TreeSet<>();
+            lastKept = -1;
+            orphans = new ArrayList<>();
+            pins = new TreeMap<>();
+            snapshots = new LinkedHashMap<>();
+            sessions = new ArrayList<>();
+            lock = new StampedLock();
+            gate = new ReentrantLock(true);
+            stripes = new ReentrantReadWriteLock[STRIPES];
+            for (int i = 0; i < STRIPES; i++) stripes[i] = new ReentrantReadWriteLock();
+        }
+        /**
+         * Returns the lock that guards this disk.
+         * <p>
+         * Apart from lookups, pinned scans and the stripes each change takes
+         * again for the directories it changes, the methods of this class do
+         * not lock. Callers hold the locks described for this class, or read
+         * optimistically and check the stamp and version before using what
+         * they read.
+         * </p>
+         *
+         * @return the lock of this disk
+         */
+        public StampedLock getLock() {
+            return lock;
+        }
+        /**
+         * Takes the exclusive lock of this disk.
+         * <p>
+         * The shared side of a {@link StampedLock} does not wait for a thread
+         * queued for the exclusive side, so a steady flow of writers could
+         * otherwise hold a scan or an undo off for as long as they keep
+         * coming. A thread waiting here holds a fair gate, which threads
+         * taking the shared lock pass through first.
+         * </p>
+         *
+         * @return the held lock, to be released with {@link Lock#unlock()}
+         */
+        public Lock lockExclusive() {
+            gate.lock();
+            try {
+                Lock exclusive = lock.asWriteLock();
+                exclusive.lock();
+                return exclusive;
+            } finally {
+                gate.unlock();
+            }
+        }
+        /**
+         * Takes the shared lock of this disk, after any thread already waiting for the exclusive lock.
+         *
+         * @return the held lock, to be released with {@link Lock#unlock()}
+         * @see #lockExclusive()
+         */
+        public Lock lockShared() {
+            if (gate.isLocked()) {
+                gate.lock();
+                gate.unlock();
+            }
+            Lock shared = lock.asReadLock();
+            shared.lock();
+            return shared;
+        }
+        /**
+         * Returns the stripe locks that guard the files of the specified directories, in lock order.
+         * <p>
+         * Directories are spread over the stripes by identity, and a stripe
+         * shared by several of them is listed once.
+         * </p>
+         *
+         * @param dirs the directories
+         * @return the stripe locks, by increasing index
+         */
+        public List<ReentrantReadWriteLock> stripesOf(Directory... dirs) {
+            boolean[] used = new boolean[STRIPES];
+            for (Directory dir : dirs) used[stripeIndex(dir)] = true;
+            List<ReentrantReadWriteLock> result = new ArrayList<>(dirs.length);
+            for (int i = 0; i < STRIPES; i++) {
+                if (used[i]) result.add(stripes[i]);
+            }
+            return result;
+        }
+        /**
+         * Returns all stripe locks of this disk, in lock order.
+         *
+         * @return the stripe locks, by increasing index
+         */
+        public List<ReentrantReadWriteLock> allStripes() {
+            return Arrays.asList(stripes);
+        }
+
+        private static int stripeIndex(Directory dir) {
+            int hash = System.identityHashCode(dir);
+            return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+        }
+
+        // Looks a name up under the stripe of the directory, as writers to other directories hold only their own;
+        // a concurrent directory is read without one
+        // The path leads into the directory, so a pending copy is expanded: the file returned must be on the disk itself
+        private File lookup(Directory dir, String name) {
+            long packed = encodeName(name);
+            if (packed < 0) return null; // no file can have such a name
+            dir.expand();
+            File file = dentries.get(dir, packed);
+            if (file != null) return file;
+            if (dir.isConcurrent()) {
+                file = dir.getFile(name);
+                if (file != null) {
+                    dentries.put(dir, packed, file);
+                    // The file may have been removed before the entry was added, and the writer's drop missed it
+                    if (dir.getFile(name) != file) dentries.remove(dir, packed, file);
+                }
+                return file;
+            }
+            Lock stripe = stripes[stripeIndex(dir)].readLock();
+            stripe.lock();
+            try {
+                file = dir.getFile(name);
+                if (file != null) dentries.put(dir, packed, file); // writers drop the entry under the stripe
+                return file;
+            } finally {
+                stripe.unlock();
+            }
+        }
+        /**
+         * Returns the root directory of the virtual disk.
+         *
+         * @return the root directory
+         */
+        public Directory getRootDirectory() {
+            return rootDirectory;
+        }
+        /**
+         * Returns whether the directories of this disk can be read while they change.
+         *
+         * @return true if the directories keep their files in a {@link ConcurrentFileList}
+         */
+        public boolean isConcurrent() {
+            return rootDirectory.isConcurrent();
+        }
+        /**
+         * Records that the specified session works on this disk.
+         *
+         * @param session the session
+         */
+        public void attach(CVFS session) {
+            sessions.add(session);
+        }
+        /**
+         * Records that the specified session no longer works on this disk.
+         *
+         * @param session the session
+         * @return true if no session works on this disk any more
+         */
+        public boolean detach(CVFS session) {
+            sessions.remove(session);
+            return sessions.isEmpty();
+        }
+        /**
+         * Checks whether the specified file is the working directory of a session, or one of its ancestors.
+         *
+         * @param file the file to check
+         * @return true if removing the file would detach the working directory of a session
+         */
+        public boolean isInUse(File file) {
+            if (!(file instanceof Directory)) return false;
+            for (CVFS session : sessions) {
+                for (Directory dir = session.workingDirectory; dir != null; dir = dir.getParent()) {
+                    if (dir == file) return true;
+                }
+            }
+            return false;
+        }
+        /**
+         * Checks whether the specified file is currently part of the tree of this disk.
+         *
+         * @param file the file to check
+         * @return true if the file can be reached from the root directory
+         */
+        public boolean contains(File file) {
+            File top = file;
+            while (top.getParent() != null) top = top.getParent();
+            return top == rootDirectory;
+        }
+        /**
+         * Returns the number of bytes currently charged against the disk quota.
+         *
+         * @return the used size of the disk in bytes
+         */
+        public long getUsedBytes() {
+            return usedBytes;
+        }
+        /**
+         * Reserves the specified number of bytes against the disk quota.
+         *
+         * @param delta the number of bytes to reserve
+         * @throws Exception if the reservation would exceed the maximum size of the disk
+         */
+        public void tryReserve(long delta) throws Exception {
+            long used;
+            do {
+                used = usedBytes;
+                if (delta > maxSize - used) throw new Exception("Disk space exceeded.");
+            } while (!USED_BYTES.compareAndSet(this, used, used + delta));
+        }
+        /**
+         * Returns previously reserved bytes to the disk quota.
+         *
+         * @param delta the number of bytes to release
+         */
+        public void release(long delta) {
+            USED_BYTES.addAndGet(this, -delta);
+        }
+        /**
+         * Adds a file to the specified directory, reserving its size before the directory is changed.
+         *
+         * @param dir the directory to add the file to
+         * @param file the file to add
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the disk space is exceeded or a file with the same name already exists
+         */
+        public Change addFile(Directory dir, File file) throws Exception {
+            List<Lock> locks = lockChange(dir);
+            try {
+                long delta = file.getSize();
+                tryReserve(delta);
+                file.markCreated(generation);
+                preservePath(dir);
+                try {
+                    dir.addFile(file);
+                } catch (Exception e) {
+                    release(delta);
+                    throw e;
+                }
+                return advance();
+            } finally {
+                unlock(locks);
+            }
+        }
+        /**
+         * Puts a file that was removed from the specified directory back in its original place.
+         *
+         * @param dir the directory the file was removed from
+         * @param file the file to restore
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the disk space is exceeded or a file with the same name already exists
+         * @see Directory#restoreFile(File, long)
+         */
+        public Change restoreFile(Directory dir, File file) throws Exception {
+            List<Lock> locks = lockChange(dir);
+            try {
+                long delta = file.getSize();
+                tryReserve(delta);
+                preservePath(dir);
+                try {
+                    dir.restoreFile(file, file.getOrder());
+                } catch (Exception e) {
+                    release(delta);
+                    throw e;
+                }
+                return advance();
+            } finally {
+                unlock(locks);
+            }
+        }
+        /**
+         * Removes a file from the specified directory and releases its size.
+         *
+         * @param dir the directory to remove the file from
+         * @param name the name of the file to remove
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the file is not found, or is a directory that
+         *                   contains the working directory of a session
+         */
+        public Change removeFile(Directory dir, String name) throws Exception {
+            List<Lock> locks = lockChange(dir);
+            try {
+                dir.expand(); // the file removed must be the copy on the disk, not the file a pending copy reads
+                File file = dir.getFile(name);
+                if (file == null) throw new Exception("File not found.");
+                if (isInUse(file)) throw new Exception("Directory is in use by another session.");
+                preservePath(dir);
+                dir.removeFile(name);
+                release(file.getSize());
+                dentries.invalidate(dir, file.getPackedName());
+                return advance();
+            } finally {
+                unlock(locks);
+            }
+        }
+        /**
+         * Renames a file in the specified directory.
+         *
+         * @param dir the directory containing the file
+         * @param oldName the current name of the file
+         * @param newName the new name of the file
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the file is not found, the new name is invalid,
+         *                   or a file with the new name already exists
+         */
+        public Change renameFile(Directory dir, String oldName, String newName) throws Exception {
+            List<Lock> locks = lockChange(dir);
+            try {
+                dir.expand();
+                File file = dir.getFile(oldName);
+                if (file != null && generation > 0) file.preserve(generation, reads);
+                dir.renameFile(oldName, newName);
+                dentries.invalidate(dir, encodeName(oldName));
+                return advance();
+            } finally {
+                unlock(locks);
+            }
+        }
+        /**
+         * Moves a file to the end of the listing of another directory.
+         * <p>
+         * Only the file itself is relinked, and the sizes of the two ancestor
+         * chains are adjusted, so this does not depend on the size of the
+         * subtree being moved. The space used on the disk does not change.
+         * </p>
+         *
+         * @param from the directory containing the file
+         * @param name the name of the file
+         * @param to the directory to move the file to
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the file is not found, if a directory would be moved
+         *                   into itself, or if the target already has a file with the same name
+         */
+        public Change moveFile(Directory from, String name, Directory to) throws Exception {
+            return moveFile(from, name, to, -1);
+        }
+        /**
+         * Moves a file to an earlier place in the listing of another directory.
+         *
+         * @param from the directory containing the file
+         * @param name the name of the file
+         * @param to the directory to move the file to
+         * @param order the place the file had in the target, as returned by {@link File#getOrder()},
+         *              or -1 to add it at the end
+         * @return the versions of the disk on either side of the change
+         * @throws Exception if the file cannot be moved
+         * @see #moveFile(Directory, String, Directory)
+         */
+        public Change moveFile(Directory from, String name, Directory to, long order) throws Exception {
+            List<Lock> locks = lockChange(from, to);
+            try {
+                from.expand();
+                to.expand();
+                File file = from.getFile(name);
+                if (file == null) throw new Exception("File not found.");
+                if (from == to) throw new Exception("File is already in the target directory.");
+                for (Directory dir = to; dir != null; dir = dir.parent) {
+                    if (dir == file) throw new Exception("Cannot move a directory into itself.");
+                }
+                if (to.getFile(name) != null) throw new Exception("File with the same name already exists.");
+                preservePath(from);
+                preservePath(to);
+                long prevOrder = file.getOrder();
+                from.removeFile(name);
+                try {
+                    if (order < 0) {
+                        to.addFile(file);
+                    } else {
+                        to.restoreFile(file, order);
+                    }
+                } catch (Exception e) {
+                    from.restoreFile(file, prevOrder);
+                    throw e;
+                }
+                dentries.invalidate(from, file.getPackedName());
+                return advance();
+            } finally {
+                unlock(locks);
+            }
+        }
+        /**
+         * Copies a file into a directory under the specified name.
+         * <p>
+         * The copy takes constant time. A copied document shares the stored
+         * content of its source. A copied directory reads its files from a
+         * snapshot of the source and copies them only when first needed, so
+         * later changes to either side are not seen by the other. The full
+         * size of the copy is charged against the disk quota. If the copy
+         * cannot be added, its content is released and the snapshot is not
+         * kept.
+         * </p>
+         *
+         * @param from the directory containing the file
+         * @param name the name of the file
+         * @param to the directory to copy the file into
+         * @param newName the name of the copy
+         * @return the copy
+         * @throws Exception if the file is not found, the new name is invalid,
+         *                   the disk space is exceeded, or a file with the new name already exists
+         */
+        public File copyFile(Directory from, String name, Directory to, String newName) throws Exception {
+            from.expand(); // the file is copied as it is now, which a pending copy only knows from its source
+            File file = from.getFile(name);
+            if (file == null) throw new Exception("File not found.");
+            // A directory copy reads a pinned snapshot, which is only kept for good once the copy is on the disk
+            Snapshot pin = file instanceof Directory ? pin() : null;
+            try {
+                File copy = file.copy(newName, pin == null ? Snapshot.LIVE : pin.getId());
+                try {
+                    addFile(to, copy);
+                } catch (Exception e) {
+                    releaseContent(copy);
+                    throw e;
+                }
+                if (pin != null) keep(pin.getId());
+                return copy;
+            } finally {
+                if (pin != null) unpin(pin);
+            }
+        }
+        /**
+         * Returns the version of the disk.
+         * <p>
+         * Every change made through this class gives the disk a new version.
+         * Two equal versions always describe the same tree, so anything built
+         * from the disk can be kept for as long as the version is unchanged.
+         * </p>
+         *
+         * @return the current version of the disk
+         */
+        public long getVersion() {
+            return version;
+        }
+        /**
+         * Moves the disk back to an earlier version.
+         * <p>
+         * The caller must first have undone every change made since that
+         * version, so that the tree is again exactly as it was then.
+         * Anything still cached for that version becomes valid again.
+         * </p>
+         *
+         * @param version the version the tree has been returned to
+         */
+        public synchronized void restoreVersion(long version) {
+            this.version = version;
+        }
+
+        // Gives the change just made a new version; writers to different directories may get here together
+        private synchronized Change advance() {
+            long before = version;
+            version = ++lastVersion;
+            return new Change(before, version);
+        }
+        /**
+         * The versions of a disk on either side of one change.
+         * <p>
+         * Writers to different directories give out versions in whatever
+         * order they finish, so the version a change replaced can only be
+         * known at the moment the change is given its own.
+         * </p>
+         */
+        static final class Change {
+            private final long before;
+            private final long after;
+            /**
+             * Constructs a Change between the specified versions.
+             *
+             * @param before the version of the disk before the change
+             * @param after the version of the disk after the change
+             */
+            Change(long before, long after) {
+                this.before = before;
+                this.after = after;
+            }
+            /**
+             * Returns the version of the disk before the change.
+             *
+             * @return the earlier version
+             */
+            public long getBefore() {
+                return before;
+            }
+            /**
+             * Returns the version of the disk after the change.
+             *
+             * @return the later version
+             */
+            public long getAfter() {
+                return after;
+            }
+        }
+        /**
+         * Resolves a path to a file on this disk.
+         * <p>
+         * The path is either absolute, starting with "/", or relative to the
+         * specified base directory. Segments are separated by "/", and the
+         * segments "." and ".." refer to the current and parent directory.
+         * The path is followed one name at a time from the root or the base,
+         * and each file found is remembered in a cache keyed by its directory
+         * and name, so a name is looked up again without locking its directory.
+         * Callers resolve paths to change the tree or to work in it, so a
+         * pending copy the path leads into is expanded on the way, and the
+         * file found is always one on the disk itself.
+         * </p>
+         *
+         * @param base the directory relative paths start from
+         * @param path the path to resolve
+         * @return the file at the path, or null if there is none
+         * @throws Exception if the path leads above the root directory
+         */
+        public File resolve(Directory base, String path) throws Exception {
+            // ".." cancels the name before it, as in the path written out in full; the rest climb from the start
+            List<String> names = new ArrayList<>();
+            int up = 0;
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty() || segment.equals(".")) continue;
+                if (!segment.equals("..")) {
+                    names.add(segment);
+                } else if (!names.isEmpty()) {
+                    names.remove(names.size() - 1);
+                } else {
+                    up++;
+                }
+            }
+            File file = path.startsWith("/") ? rootDirectory : base;
+            for (; up > 0; up--) {
+                file = file.getParent();
+                if (file == null) throw new Exception("Invalid path.");
+            }
+            for (String name : names) {
+                if (!(file instanceof Directory)) return null;
+                file = lookup((Directory) file, name);
+                if (file == null) return null;
+            }
+            return file;
+        }
+        /**
+         * Resolves a path to a directory on this disk.
+         *
+         * @param base the directory relative paths start from
+         * @param path the path to resolve
+         * @return the directory at the path
+         * @throws Exception if the path does not lead to a directory
+         * @see #resolve(Directory, String)
+         */
+        public Directory resolveDirectory(Directory base, String path) throws Exception {
+            File file = resolve(base, path);
+            if (!(file instanceof Directory)) throw new Exception("Directory not found.");
+            return (Directory) file;
+        }
+
+        /**
+         * Looks up a directory by path without touching any cache, for a caller that reads optimistically.
+         * <p>
+         * Only names, "." and ".." are followed, and the lookup gives up on a
+         * directory whose copy is still pending. As a concurrent change may
+         * leave the tree inconsistent while it is read, the result is only
+         * meaningful if the caller's stamp is still valid afterwards.
+         * </p>
+         *
+         * @param base the directory relative paths start from
+         * @param path the path to look up
+         * @return the directory at the path, or null if it was not found or the lookup gave up
+         */
+        public Directory findDirectory(Directory base, String path) {
+            try {
+                File file = path.startsWith("/") ? rootDirectory : base;
+                for (String segment : path.split("/")) {
+                    if (segment.isEmpty() || segment.equals(".")) continue;
+                    if (!(file instanceof Directory) || ((Directory) file).isCopyPending()) return null;
+                    Directory dir = (Directory) file;
+                    file = segment.equals("..") ? dir.getParent() : dir.getFile(segment);
+                    if (file == null) return null;
+                }
+                return file instanceof Directory ? (Directory) file : null;
+            } catch (RuntimeException e) {
+                return null; // a torn read, which the caller's validation rejects anyway
+            }
+        }
+
+        /**
+         * Starts a walk of the subtree rooted at the specified directory from a pinned snapshot.
+         * <p>
+         * No disk lock is held, so writers go on while the tree is walked.
+         * Each directory is read under its stripe, one at a time, which only
+         * waits for a change to that directory that is already under way.
+         * Closing the walk releases the pin.
+         * </p>
+         *
+         * @param dir the root directory of the walk, which was on the disk when it was pinned
+         * @param pin the snapshot taken with {@link #pin()}
+         * @return the walk over the directory as it was in the snapshot
+         */
+        public TreeWalk walk(Directory dir, Snapshot pin) {
+            return new TreeWalk(dir, this, pin);
+        }
+
+        // Reads the files a directory held in a pinned snapshot, see Directory#getFiles(int, int[]); the stripe
+        // of the directory they belong to keeps writers out while the live list is copied
+        Collection<File> filesAt(Directory dir, int snapshot, int[] at) {
+            Directory owner = dir.filesOwner(snapshot, at);
+            Lock stripe = stripes[stripeIndex(owner)].readLock();
+            stripe.lock();
+            try {
+                Collection<File> files = owner.getFiles(at[0]);
+                return files instanceof FileList ? new ArrayList<>(files) : files; // recorded lists never change
+            } finally {
+                stripe.unlock();
+            }
+        }
+
+        /**
+         * Takes a snapshot of the whole disk under the specified name.
+         * <p>
+         * This takes constant time: no file is copied until it is next changed.
+         * </p>
+         *
+         * @param name the name of the snapshot
+         * @return the new snapshot
+         * @throws Exception if a snapshot with the same name already exists
+         */
+        public Snapshot takeSnapshot(String name) throws Exception {
+            if (snapshots.containsKey(name)) throw new Exception("Snapshot already exists.");
+            Snapshot snapshot = new Snapshot(name, keep(), rootDirectory, usedBytes);
+            snapshots.put(name, snapshot);
+            return snapshot;
+        }
+        /**
+         * Returns the snapshot with the specified name.
+         *
+         * @param name the name of the snapshot
+         * @return the snapshot
+         * @throws Exception if there is no snapshot with that name
+         */
+        public Snapshot getSnapshot(String name) throws Exception {
+            Snapshot snapshot = snapshots.get(name);
+            if (snapshot == null) throw new Exception("Snapshot not found.");
+            return snapshot;
+        }
+        /**
+         * Returns the snapshots of this disk in the order they were taken.
+         *
+         * @return the snapshots of this disk
+         */
+        public Collection<Snapshot> getSnapshots() {
+            return snapshots.values();
+        }
+        /**
+         * Releases the stored content of a file that has been dropped from the undo/redo history.
+         * <p>
+         * A document that a named snapshot or a copied directory may still
+         * read is set aside instead, and released with the disk. Only the
+         * documents created after the newest generation kept for them, and
+         * unchanged since, are released at once.
+         * </p>
+         *
+         * @param file the file or directory whose documents are released
+         * @see File#isNewerThan(int)
+         */
+        public void discard(File file) {
+            int newest = lastKept;
+            Deque<File> pending = new ArrayDeque<>();
+            pending.push(file);
+            while (!pending.isEmpty()) {
+                File next = pending.pop();
+                if (next instanceof Document) {
+                    if (newest < 0 || next.isNewerThan(newest)) {
+                        ((Document) next).free();
+                    } else {
+                        synchronized (orphans) {
+                            orphans.add((Document) next);
+                        }
+                    }
+                } else if (next instanceof Directory && !((Directory) next).isCopyPending()) {
+                    for (File child : ((Directory) next).getFiles()) pending.push(child);
+                }
+            }
+        }
+        /**
+         * Returns the documents set aside by {@link #discard(File)}.
+         *
+         * @return the documents to release with the disk
+         */
+        public List<Document> getOrphans() {
+            return orphans;
+        }
+        /**
+         * Pins the current state of the disk for a scan that runs while writers go on.
+         * <p>
+         * The pin is an unnamed snapshot: it closes the current generation,
+         * so from then on writers record the state of each file before they
+         * first change it, exactly as for a named one. If the disk has not
+         * changed since the last generation was closed, that one is pinned
+         * again instead, so back-to-back scans add nothing for writers to
+         * record. The caller must hold
+         * the exclusive lock, so that no change is half applied in the
+         * pinned state, and must release the pin with {@link #unpin(Snapshot)}.
+         * </p>
+         *
+         * @return the pinned snapshot
+         */
+        public Snapshot pin() {
+            synchronized (pins) {
+                int id = closeGeneration();
+                pins.merge(id, 1, Integer::sum);
+                updateReads();
+                return new Snapshot(null, id, rootDirectory, usedBytes);
+            }
+        }
+        /**
+         * Releases a snapshot taken with {@link #pin()}.
+         * <p>
+         * Versions that only pinned snapshots could read are no longer kept,
+         * and are dropped by the next change to each file.
+         * </p>
+         *
+         * @param pin the pinned snapshot
+         */
+        public void unpin(Snapshot pin) {
+            synchronized (pins) {
+                if (pins.merge(pin.getId(), -1, Integer::sum) == 0) pins.remove(pin.getId());
+                updateReads();
+            }
+        }
+
+        // Closes a generation whose id is read for as long as the disk is loaded
+        private int keep() {
+            synchronized (pins) {
+                int id = closeGeneration();
+                keep(id);
+                return id;
+            }
+        }
+
+        // Keeps a generation that has already been closed, such as a pinned one, for as long as the disk is loaded
+        private void keep(int id) {
+            synchronized (pins) {
+                kept.add(id);
+                lastKept = Math.max(lastKept, id);
+                updateReads();
+            }
+        }
+
+        // Closes the current generation and returns its id, or that of the last one if the disk is unchanged since;
+        // called with the exclusive lock held, so no change is under way
+        private int closeGeneration() {
+            if (closedAt == version) return generation - 1;
+            closedAt = version;
+            return generation++;
+        }
+
+        private void updateReads() {
+            TreeSet<Integer> ids = new TreeSet<>(kept);
+            ids.addAll(pins.keySet());
+            int[] sorted = new int[ids.size()];
+            int i = 0;
+            for (int id : ids) sorted[i++] = id;
+            reads = sorted;
+        }
+        /**
+         * Builds a separate disk holding a copy of the files in the specified snapshot.
+         * <p>
+         * The copy can be saved like any other disk. Its documents store their
+         * content again, so it must be released once it is no longer needed.
+         * </p>
+         *
+         * @param snapshot the snapshot to copy
+         * @return a new disk with the contents of the snapshot
+         * @throws Exception if a document in the snapshot cannot be copied
+         */
+        public VirtualDisk materialize(Snapshot snapshot) throws Exception {
+            VirtualDisk disk = new VirtualDisk(maxSize, isConcurrent());
+            int[] at = new int[1];
+            Deque<Directory> sources = new ArrayDeque<>();
+            Deque<Integer> ids = new ArrayDeque<>(); // the snapshot each source is read in, see Directory#getFiles(int, int[])
+            Deque<Directory> copies = new ArrayDeque<>();
+            sources.push(rootDirectory);
+            ids.push(snapshot.getId());
+            copies.push(disk.rootDirectory);
+            while (!sources.isEmpty()) {
+                Directory source = sources.pop();
+                Directory copy = copies.pop();
+                Collection<File> files = source.getFiles(ids.pop(), at);
+                int id = at[0];
+                for (File file : files) {
+                    String name = decodeName(file.getPackedName(id));
+                    if (file instanceof Document) {
+                        Document doc = (Document) file;
+                        copy.addFile(new Document(name, doc.getType(), doc.getContent()));
+                    } else {
+                        Directory dir = new Directory(name, copy);
+                        copy.addFile(dir);
+                        sources.push((Directory) file);
+                        ids.push(id);
+                        copies.push(dir);
+                    }
+                }
+            }
+            disk.usedBytes = snapshot.getUsedBytes();
+            return disk;
+        }
+
+        // Records the pre-snapshot state of a directory whose files are about to change, and of its ancestors
+        private void preservePath(Directory dir) {
+            if (generation == 0) return;
+            int[] reads = this.reads;
+            dir.preserveFiles(generation, reads);
+            for (Directory ancestor = dir.parent; ancestor != null; ancestor = ancestor.parent) {
+                ancestor.preserve(generation, reads);
+            }
+        }
+
+        // Write-locks the stripes of the directories a change touches, so that pinned scans wait for it;
+        // commands that change single directories already hold them and take them again
+        private List<Lock> lockChange(Directory... dirs) {
+            List<Lock> locks = new ArrayList<>();
+            for (ReentrantReadWriteLock stripe : stripesOf(dirs)) {
+                stripe.writeLock().lock();
+                locks.add(stripe.writeLock());
+            }
+            return locks;
+        }
+
+    }
+
+    // Snapshot class
+    /**
+     * A named, read-only view of a virtual disk at the moment it was taken.
+     * <p>
+     * A snapshot holds no copy of the tree. It is identified by the disk
+     * generation it closes, and reads through it ask each file for its
+     * state in that generation. Scans pin unnamed snapshots of their own,
+     * which are released when the scan ends.
+     * </p>
+     */
+    static class Snapshot {
+        /**
+         * The id used to read the current state of files.
+         */
+        public static final int LIVE = Integer.MAX_VALUE;
+        private final String name;
+        private final int id;
+        private final Directory root;
+        private final long usedBytes;
+        /**
+         * Constructs a new Snapshot.
+         *
+         * @param name the name of the snapshot
+         * @param id the generation of the disk the snapshot closes
+         * @param root the root directory of the disk
+         * @param usedBytes the number of bytes in use on the disk when the snapshot was taken
+         */
+        public Snapshot(String name, int id, Directory root, long usedBytes) {
+            this.name = name;
+            this.id = id;
+            this.root = root;
+            this.usedBytes = usedBytes;
+        }
+        /**
+         * Returns the name of the snapshot.
+         *
+         * @return the snapshot name
+         */
+        public String getName() {
+            return name;
+        }
+        /**
+         * Returns the id of the snapshot.
          *
-         * @return the name of the file
+         * @return the snapshot id
          */
-        public String getName() {
-            return name;
+        public int getId() {
+            return id;
         }
         /**
-         * Sets the name of the file.
+         * Returns the number of bytes in use on the disk when the snapshot was taken.
          *
-         * @param name the new name of the file
-         * @throws Exception if the new file name is invalid
+         * @return the used size of the disk in bytes
          */
-        public void setName(String name) throws Exception {
-            if (!isValidName(name)) throw new Exception("Invalid file name.");
-            this.name = name;
+        public long getUsedBytes() {
+            return usedBytes;
         }
         /**
-         * Abstract method to get the size of the file.
+         * Resolves an absolute path to a directory as it was in this snapshot.
+         * <p>
+         * Below a pending copy, the directory found belongs to the source of
+         * the copy and is read in the snapshot the copy was taken from, which
+         * is stored in {@code at[0]}; otherwise that is the id of this snapshot.
+         * </p>
          *
-         * @return the size of the file in bytes
+         * @param path the absolute path, as returned by {@link File#getPath()}
+         * @param at where the snapshot in which the directory is read is stored
+         * @return the directory at the path in this snapshot
+         * @throws Exception if the path does not lead to a directory in this snapshot
          */
-        public abstract int getSize();
+        public Directory resolveDirectory(String path, int[] at) throws Exception {
+            Directory dir = root;
+            at[0] = id;
+            for (String segment : path.split("/")) {
+                if (segment.isEmpty()) continue;
+                long packed = encodeName(segment);
+                File next = null;
+                for (File file : dir.getFiles(at[0], at)) {
+                    if (file.getPackedName(at[0]) == packed) {
+                        next = file;
+                        break;
+                    }
+                }
+                if (!(next instanceof Directory)) throw new Exception("Directory not found.");
+                dir = (Directory) next;
+            }
+            return dir;
+        }
     }
 
-    // Directory class
+    // DentryCache class
     /**
-     * Represents a directory that can contain files and other directories.
+     * Caches the files found by name in the directories of a virtual disk.
      * <p>
-     * This class extends the {@link File} class to provide functionality
-     * for managing a collection of files. It includes methods for adding,
-     * removing, and retrieving files, as well as calculating the total size
-     * of the directory, including all its contents.
+     * Entries are keyed by directory and packed name, so an entry stays
+     * valid while its file stays in that directory under that name, however
+     * the directory itself is renamed or moved. When a file is removed,
+     * renamed or moved, only its own entry is dropped. The cache never
+     * records missing names, so adding a file needs no invalidation.
+     * </p>
+     * <p>
+     * Lookups holding the shared disk lock fill the cache while writers drop
+     * entries, so it is kept in a {@link ConcurrentHashMap}. Once it holds
+     * its limit, each new entry evicts the oldest one.
      * </p>
      */
-    static class Directory extends File {
-        private List<File> files;
+    static class DentryCache {
+        private static final int MAX_ENTRIES = 1 << 16;
+        private final ConcurrentHashMap<Key, File> entries = new ConcurrentHashMap<>();
+        private final Queue<Key> added = new ConcurrentLinkedQueue<>(); // in the order entries were added
+        private final AtomicInteger queued = new AtomicInteger();
         /**
-         * Constructs a new Directory with the specified name and parent directory.
+         * Returns the cached file with the specified name in a directory.
          *
-         * @param name the name of the directory
-         * @param parent the parent directory of the new directory
-         * @throws Exception if the directory name is invalid
+         * @param dir the directory
+         * @param name the packed name of the file
+         * @return the cached file, or null if the name is not cached
          */
-
-        public Directory(String name, Directory parent) throws Exception {
-            super(name);
-            this.parent = parent;
-            this.files = new ArrayList<>();
+        public File get(Directory dir, long name) {
+            return entries.get(new Key(dir, name));
         }
         /**
-         * Returns the parent directory of this directory.
+         * Caches the file found under the specified name in a directory, evicting the oldest entry if the cache is full.
          *
-         * @return the parent directory
+         * @param dir the directory
+         * @param name the packed name of the file
+         * @param file the file found
          */
-        public Directory getParent() {
-            return parent;
+        public void put(Directory dir, long name, File file) {
+            Key key = new Key(dir, name);
+            if (entries.put(key, file) != null) return; // already queued
+            added.add(key);
+            if (queued.incrementAndGet() > MAX_ENTRIES) {
+                Key oldest = added.poll();
+                if (oldest != null) {
+                    queued.decrementAndGet();
+                    entries.remove(oldest);
+                }
+            }
         }
         /**
-         * Adds a file or directory to this directory.
+         * Drops the entry for the specified name in a directory if it still holds the specified file.
          *
-         * @param file the file or directory to add
-         * @throws Exception if a file with the same name already exists
+         * @param dir the directory
+         * @param name the packed name of the file
+         * @param file the file the entry was added for
          */
-        public void addFile(File file) throws Exception {
-            if (files.stream().anyMatch(f -> f.getName().equals(file.getName())))
-                throw new Exception("File with the same name already exists.");
-            files.add(file);
-            if (file instanceof Directory) ((Directory) file).parent = this;
+        public void remove(Directory dir, long name, File file) {
+            entries.remove(new Key(dir, name), file);
         }
         /**
-         * Removes a file or directory by name from this directory.
+         * Drops the entry for the specified name in a directory.
          *
-         * @param name the name of the file to remove
-         * @throws Exception if the file is not found
+         * @param dir the directory of a removed, renamed or moved file
+         * @param name the packed name the file had there
          */
-        public void removeFile(String name) throws Exception {
-            File toRemove = null;
-            for (File f : files) {
-                if (f.getName().equals(name)) {
-                    toRemove = f;
-                    break;
-                }
+        public void invalidate(Directory dir, long name) {
+            entries.remove(new Key(dir, name));
+        }
+
+        // A directory, compared by identity, and a packed name
+        private static final class Key {
+            private final Directory dir;
+            private final long name;
+
+            private Key(Directory dir, long name) {
+                this.dir = dir;
+                this.name = name;
             }
-            if (toRemove != null) {
-                files.remove(toRemove);
-            } else {
-                throw new Exception("File not found.");
+
+            @Override
+            public boolean equals(Object o) {
+                return o instanceof Key && ((Key) o).dir == dir && ((Key) o).name == name;
+            }
+
+            @Override
+            public int hashCode() {
+                return System.identityHashCode(dir) * 31 + Long.hashCode(name);
             }
         }
+    }
+
+    // TreeWalk class
+    /**
+     * Walks a directory subtree as it was in a snapshot, one file at a time.
+     * <p>
+     * Files are visited in the order a recursive listing prints them: each
+     * directory right before its own files, and the files of a directory in
+     * the order they were added. The walk keeps only one iterator for each
+     * directory it is in and the names of those directories, so nothing is
+     * copied up front and a scan can stop at any point. Names and sizes are
+     * read as they were in the snapshot, or, below a pending copy, in the
+     * snapshot the copy reads its source in.
+     * </p>
+     * <p>
+     * A walk over a snapshot pinned with {@link VirtualDisk#pin()} reads
+     * each directory through the disk, under its stripe, and releases the
+     * pin when it is closed. Any other walk expects the caller to hold the
+     * disk lock while it runs.
+     * </p>
+     */
+    static class TreeWalk implements AutoCloseable {
+        private final boolean recursive;
+        private final VirtualDisk disk; // reads the files of each directory through the disk, or null under the disk lock
+        private Snapshot pin;
+        private final Deque<Iterator<File>> iterators = new ArrayDeque<>();
+        private long[] names = new long[16]; // the packed names of the directories above the current file
+        private int[] snapshots = new int[16]; // the snapshot the files at each depth are read in
+        private final int[] at = new int[1];
+        private File file;
         /**
-         * Retrieves a file or directory by name from this directory.
+         * Starts a walk of the subtree rooted at the specified directory as it was in a snapshot.
          *
-         * @param name the name of the file to retrieve
-         * @return the file with the specified name, or null if not found
+         * @param root the root directory of the subtree, which is not visited itself
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @param recursive true to visit the whole subtree, false for the files of the root only
          */
-        public File getFile(String name) {
-            return files.stream().filter(f -> f.getName().equals(name)).findFirst().orElse(null);
+        public TreeWalk(Directory root, int snapshot, boolean recursive) {
+            this(root, snapshot, recursive, null, null);
         }
         /**
-         * Returns the list of files in this directory.
+         * Starts a walk of the subtree rooted at the specified directory from a pinned snapshot.
          *
-         * @return a list of files contained in this directory
+         * @param root the root directory of the subtree, which was on the disk when it was pinned
+         * @param disk the disk, through which the files of each directory are read
+         * @param pin the snapshot taken with {@link VirtualDisk#pin()}, released by {@link #close()}
          */
-        public List<File> getFiles() {
-            return files;
+        public TreeWalk(Directory root, VirtualDisk disk, Snapshot pin) {
+            this(root, pin.getId(), true, disk, pin);
         }
 
-        @Override
-        public int getSize() {
-            int totalSize = BASE_FILE_SIZE;
-            for (File file : files) {
-                totalSize += file.getSize();
-            }
-            return totalSize;
+        private TreeWalk(Directory root, int snapshot, boolean recursive, VirtualDisk disk, Snapshot pin) {
+            this.recursive = recursive;
+            this.disk = disk;
+            this.pin = pin;
+            iterators.push(filesOf(root, snapshot));
+            snapshots[0] = at[0];
         }
-    }
-
-    // Document class
-    /**
-     * Represents a document file in the system.
-     * <p>
-     * This class extends the {@link File} class to provide functionality
-     * specific to document files, including type validation and content management.
-     * It includes methods for retrieving the document type and calculating the
-     * size of the document based on its content.
-     * </p>
-     */
 
-    static class Document extends File {
-        private String type;
-        private String content;
+        private Iterator<File> filesOf(Directory dir, int snapshot) {
+            return (disk == null ? dir.getFiles(snapshot, at) : disk.filesAt(dir, snapshot, at)).iterator();
+        }
         /**
-         * Constructs a new Document with the specified name, type, and content.
+         * Moves to the next file of the walk.
          *
-         * @param name the name of the document
-         * @param type the type of the document
-         * @param content the content of the document
-         * @throws Exception if the document name is invalid or the document type is not allowed
+         * @return the next file, or null once every file was visited
          */
-        public Document(String name, String type, String content) throws Exception {
-            super(name);
-            if (!ALLOWED_DOC_TYPES.contains(type)) throw new Exception("Invalid document type.");
-            this.type = type;
-            this.content = content;
+        public File next() {
+            if (recursive && file instanceof Directory) {
+                int depth = iterators.size() - 1;
+                if (depth + 1 == names.length) {
+                    names = Arrays.copyOf(names, names.length * 2);
+                    snapshots = Arrays.copyOf(snapshots, snapshots.length * 2);
+                }
+                names[depth] = file.getPackedName(snapshots[depth]);
+                iterators.push(filesOf((Directory) file, snapshots[depth]));
+                snapshots[depth + 1] = at[0];
+            }
+            while (!iterators.isEmpty()) {
+                Iterator<File> files = iterators.peek();
+                if (files.hasNext()) return file = files.next();
+                iterators.pop();
+            }
+            return file = null;
         }
         /**
-         * Returns the type of the document.
+         * Returns the depth of the current file.
          *
-         * @return the document type
+         * @return 0 for a file of the root, 1 for a file of one of its directories, and so on
          */
-        public String getType() {
-            return type;
+        public int getDepth() {
+            return iterators.size() - 1;
         }
         /**
-         * Returns the length of the document's content.
+         * Returns the packed name of the current file in the snapshot.
          *
-         * @return the length of the content in characters
+         * @return the packed name
+         * @see CVFS#decodeName(long)
          */
-        public int getContentLength() {
-            return content.length();
+        public long getName() {
+            return file.getPackedName(getSnapshot());
         }
-
-        @Override
-        public int getSize() {
-            return BASE_FILE_SIZE + content.length() * 2;
-        }
-    }
-
-    // VirtualDisk class
-    /**
-     * Represents a virtual disk that can hold files and directories.
-     * <p>
-     * This class encapsulates a virtual disk with a maximum size limit
-     * and a root directory. It provides methods to access the root directory
-     * and ensure that the disk size does not exceed the specified limit.
-     * </p>
-     */
-    static class VirtualDisk implements Serializable {
-        private int maxSize;
-        private Directory rootDirectory;
         /**
-         * Constructs a new VirtualDisk with a specified maximum size.
+         * Returns the size of the current file in the snapshot.
          *
-         * @param maxSize the maximum size of the virtual disk in bytes
-         * @throws Exception if the maximum size is less than or equal to zero
+         * @return the size in bytes
          */
-        public VirtualDisk(int maxSize) throws Exception {
-            this.maxSize = maxSize;
-            this.rootDirectory = new Directory("root", null);
+        public long getSize() {
+            return file.getSize(getSnapshot());
         }
         /**
-         * Returns the root directory of the virtual disk.
+         * Returns the id of the snapshot the current file is read in.
          *
-         * @return the root directory
+         * @return the snapshot id, or {@link Snapshot#LIVE} for the current state
          */
-        public Directory getRootDirectory() {
-            return rootDirectory;
+        public int getSnapshot() {
+            return snapshots[getDepth()];
         }
         /**
-         * Updates the current size of the virtual disk and checks if it exceeds the maximum size.
+         * Returns the path of the current file relative to the root of the walk, such as "a/b".
          *
-         * @throws Exception if the current size exceeds the maximum size of the disk
+         * @return the relative path
+         */
+        public String getRelativePath() {
+            StringBuilder path = new StringBuilder();
+            for (int i = 0; i < getDepth(); i++) path.append(decodeName(names[i])).append('/');
+            return path.append(decodeName(getName())).toString();
+        }
+        /**
+         * Releases the pinned snapshot of the walk, if it has one.
          */
-        public void updateSize() throws Exception {
-            int currentSize = rootDirectory.getSize();
-            if (currentSize > maxSize) throw new Exception("Disk space exceeded.");
+        @Override
+        public void close() {
+            if (pin != null) disk.unpin(pin);
+            pin = null;
         }
     }
 
@@ -948,6 +4667,14 @@ public class CVFS {
          * @return true if the file meets the criterion, false otherwise
          */
         boolean evaluate(File file);
+        /**
+         * Evaluates whether the specified file met the criterion in a snapshot.
+         *
+         * @param file the file to evaluate
+         * @param snapshot the snapshot id, or {@link Snapshot#LIVE} for the current state
+         * @return true if the file met the criterion, false otherwise
+         */
+        boolean evaluate(File file, int snapshot);
 
         String toString();
     }
@@ -963,6 +4690,7 @@ public class CVFS {
         private String attrName;
         private String op;
         private String val;
+        private DocType docType;
         /**
          * Constructs a new SimpleCriterion with the specified attribute name, operator, and value.
          *
@@ -991,11 +4719,12 @@ public class CVFS {
                 case "type":
                     if (!op.equals("equals")) throw new Exception("Invalid operator for type attribute.");
                     // No need to check for double quotes
+                    docType = DocType.fromName(val);
                     break;
                 case "size":
-                    if (!op.matches(">|<|>=|<=|==|!=")) throw new Exception("Invalid operator for size attribute.");
+                    if (!isSizeOperator(op)) throw new Exception("Invalid operator for size attribute.");
                     try {
-                        Integer.parseInt(val);
+                        Long.parseLong(val);
                     } catch (NumberFormatException e) {
                         throw new Exception("Value must be an integer.");
                     }
@@ -1012,32 +4741,49 @@ public class CVFS {
                     return file.getName().contains(val);
                 case "type":
                     if (file instanceof Document) {
-                        return ((Document) file).getType().equals(val);
+                        return ((Document) file).getType() == docType;
                     }
                     return false;
                 case "size":
-                    int sizeVal = Integer.parseInt(val);
-                    int fileSize = file.getSize();
-                    switch (op) {
-                        case ">":
-                            return fileSize > sizeVal;
-                        case "<":
-                            return fileSize < sizeVal;
-                        case ">=":
-                            return fileSize >= sizeVal;
-                        case "<=":
-                            return fileSize <= sizeVal;
-                        case "==":
-                            return fileSize == sizeVal;
-                        case "!=":
-                            return fileSize != sizeVal;
-                    }
+                    return compareSize(file.getSize());
+                default:
                     return false;
+            }
+        }
+
+        @Override
+        public boolean evaluate(File file, int snapshot) {
+            switch (attrName) {
+                case "name":
+                    return decodeName(file.getPackedName(snapshot)).contains(val);
+                case "type":
+                    return file instanceof Document && ((Document) file).getType() == docType;
+                case "size":
+                    return compareSize(file.getSize(snapshot));
                 default:
                     return false;
             }
         }
 
+        private boolean compareSize(long fileSize) {
+            long sizeVal = Long.parseLong(val);
+            switch (op) {
+                case ">":
+                    return fileSize > sizeVal;
+                case "<":
+                    return fileSize < sizeVal;
+                case ">=":
+                    return fileSize >= sizeVal;
+                case "<=":
+                    return fileSize <= sizeVal;
+                case "==":
+                    return fileSize == sizeVal;
+                case "!=":
+                    return fileSize != sizeVal;
+            }
+            return false;
+        }
+
         @Override
         public String toString() {
             return "attrName: " + attrName + ", op: " + op + ", val: " + val;
@@ -1056,6 +4802,11 @@ public class CVFS {
             return file instanceof Document;
         }
 
+        @Override
+        public boolean evaluate(File file, int snapshot) {
+            return file instanceof Document;
+        }
+
         @Override
         public String toString() {
             return "IsDocument";
@@ -1085,6 +4836,11 @@ public class CVFS {
             return !criterion.evaluate(file);
         }
 
+        @Override
+        public boolean evaluate(File file, int snapshot) {
+            return !criterion.evaluate(file, snapshot);
+        }
+
         @Override
         public String toString() {
             return "!( " + criterion.toString() + " )";
@@ -1130,6 +4886,18 @@ public class CVFS {
             }
         }
 
+        @Override
+        public boolean evaluate(File file, int snapshot) {
+            switch (logicOp) {
+                case "&&":
+                    return c1.evaluate(file, snapshot) && c2.evaluate(file, snapshot);
+                case "||":
+                    return c1.evaluate(file, snapshot) || c2.evaluate(file, snapshot);
+                default:
+                    return false;
+            }
+        }
+
         @Override
         public String toString() {
             return "( " + c1.toString() + " ) " + logicOp + " ( " + c2.toString() + " )";
@@ -1158,6 +4926,72 @@ public class CVFS {
          * @throws Exception if an error occurs during the redo operation
          */
         void redo() throws Exception;
+        /**
+         * Releases resources held only by this command when it is dropped from the history.
+         *
+         * @param applied true if the command is dropped from the undo stack, so its
+         *                operation is currently applied; false if it is dropped
+         *                from the redo stack
+         */
+        default void discard(boolean applied) {
+        }
+    }
+    /**
+     * Base class for commands that change the virtual disk.
+     * <p>
+     * A disk command remembers the disk versions before and after its
+     * change. Undoing it reverses the change and moves the disk back to
+     * the earlier version, and redoing it moves the disk forward again, so
+     * the history never gives one version to two different trees. Each
+     * step only relinks the affected file, whatever the size of its subtree.
+     * </p>
+     */
+    static abstract class DiskCommand implements Command {
+        protected final VirtualDisk disk;
+        private final long before;
+        private final long after;
+        /**
+         * Constructs a DiskCommand for a change that has just been applied to the specified disk.
+         *
+         * @param disk the disk that was changed
+         * @param change the versions of the disk on either side of the change
+         */
+        protected DiskCommand(VirtualDisk disk, VirtualDisk.Change change) {
+            this.disk = disk;
+            this.before = change.getBefore();
+            this.after = change.getAfter();
+        }
+
+        // Whether this command changed the same disk later than the specified one
+        boolean follows(DiskCommand other) {
+            return disk == other.disk && after > other.after;
+        }
+
+        @Override
+        public final void undo() throws Exception {
+            if (disk.getVersion() != after) throw new Exception("Undo history does not match the disk.");
+            revert();
+            disk.restoreVersion(before);
+        }
+
+        @Override
+        public final void redo() throws Exception {
+            if (disk.getVersion() != before) throw new Exception("Redo history does not match the disk.");
+            apply();
+            disk.restoreVersion(after);
+        }
+        /**
+         * Reverses the change on the disk.
+         *
+         * @throws Exception if the change cannot be reversed
+         */
+        protected abstract void revert() throws Exception;
+        /**
+         * Applies the change to the disk again.
+         *
+         * @throws Exception if the change cannot be applied
+         */
+        protected abstract void apply() throws Exception;
     }
     /**
      * Command to create a new document in a specified directory.
@@ -1168,30 +5002,36 @@ public class CVFS {
      * the virtual disk size accordingly.
      * </p>
      */
-    static class NewDocCommand implements Command {
+    static class NewDocCommand extends DiskCommand {
         private Document doc;
         private Directory dir;
         /**
          * Constructs a NewDocCommand to create a new document in the specified directory.
          *
+         * @param disk the disk that was changed
          * @param doc the document to create
          * @param dir the directory in which to create the document
+         * @param change the versions of the disk on either side of the change
          */
-        public NewDocCommand(Document doc, Directory dir) {
+        public NewDocCommand(VirtualDisk disk, Document doc, Directory dir, VirtualDisk.Change change) {
+            super(disk, change);
             this.doc = doc;
             this.dir = dir;
         }
 
         @Override
-        public void undo() throws Exception {
-            dir.removeFile(doc.getName());
-            workingDisk.updateSize();
+        protected void revert() throws Exception {
+            disk.removeFile(dir, doc.getName());
         }
 
         @Override
-        public void redo() throws Exception {
-            dir.addFile(doc);
-            workingDisk.updateSize();
+        protected void apply() throws Exception {
+            disk.restoreFile(dir, doc);
+        }
+
+        @Override
+        public void discard(boolean applied) {
+            if (!applied) disk.discard(doc);
         }
     }
 
@@ -1204,30 +5044,36 @@ public class CVFS {
      * structure and the virtual disk size are updated accordingly.
      * </p>
      */
-    static class NewDirCommand implements Command {
+    static class NewDirCommand extends DiskCommand {
         private Directory newDir;
         private Directory dir;
         /**
          * Constructs a NewDirCommand to create a new directory in the specified parent directory.
          *
+         * @param disk the disk that was changed
          * @param newDir the new directory to create
          * @param dir the parent directory in which to create the new directory
+         * @param change the versions of the disk on either side of the change
          */
-        public NewDirCommand(Directory newDir, Directory dir) {
+        public NewDirCommand(VirtualDisk disk, Directory newDir, Directory dir, VirtualDisk.Change change) {
+            super(disk, change);
             this.newDir = newDir;
             this.dir = dir;
         }
 
         @Override
-        public void undo() throws Exception {
-            dir.removeFile(newDir.getName());
-            workingDisk.updateSize();
+        protected void revert() throws Exception {
+            disk.removeFile(dir, newDir.getName());
         }
 
         @Override
-        public void redo() throws Exception {
-            dir.addFile(newDir);
-            workingDisk.updateSize();
+        protected void apply() throws Exception {
+            disk.restoreFile(dir, newDir);
+        }
+
+        @Override
+        public void discard(boolean applied) {
+            if (!applied) disk.discard(newDir);
         }
     }
     /**
@@ -1239,30 +5085,36 @@ public class CVFS {
      * re-deleted as needed.
      * </p>
      */
-    static class DeleteCommand implements Command {
+    static class DeleteCommand extends DiskCommand {
         private File file;
         private Directory dir;
         /**
          * Constructs a DeleteCommand to delete the specified file from the given directory.
          *
+         * @param disk the disk that was changed
          * @param file the file to delete
          * @param dir the directory from which to delete the file
+         * @param change the versions of the disk on either side of the change
          */
-        public DeleteCommand(File file, Directory dir) {
+        public DeleteCommand(VirtualDisk disk, File file, Directory dir, VirtualDisk.Change change) {
+            super(disk, change);
             this.file = file;
             this.dir = dir;
         }
 
         @Override
-        public void undo() throws Exception {
-            dir.addFile(file);
-            workingDisk.updateSize();
+        protected void revert() throws Exception {
+            disk.restoreFile(dir, file);
         }
 
         @Override
-        public void redo() throws Exception {
-            dir.removeFile(file.getName());
-            workingDisk.updateSize();
+        protected void apply() throws Exception {
+            disk.removeFile(dir, file.getName());
+        }
+
+        @Override
+        public void discard(boolean applied) {
+            if (applied) disk.discard(file);
         }
     }
     /**
@@ -1274,30 +5126,78 @@ public class CVFS {
      * or to be renamed again.
      * </p>
      */
-    static class RenameCommand implements Command {
-        private File file;
+    static class RenameCommand extends DiskCommand {
+        private Directory dir;
         private String prevName;
         private String newName;
         /**
-         * Constructs a RenameCommand to rename the specified file.
+         * Constructs a RenameCommand to rename a file in the specified directory.
          *
-         * @param file the file to rename
+         * @param disk the disk that was changed
+         * @param dir the directory containing the file
          * @param prevName the previous name of the file before renaming
+         * @param newName the name of the file after renaming
+         * @param change the versions of the disk on either side of the change
          */
-        public RenameCommand(File file, String prevName) {
-            this.file = file;
+        public RenameCommand(VirtualDisk disk, Directory dir, String prevName, String newName, VirtualDisk.Change change) {
+            super(disk, change);
+            this.dir = dir;
             this.prevName = prevName;
-            this.newName = file.getName();
+            this.newName = newName;
         }
 
         @Override
-        public void undo() throws Exception {
-            file.setName(prevName);
+        protected void revert() throws Exception {
+            disk.renameFile(dir, newName, prevName);
         }
 
         @Override
-        public void redo() throws Exception {
-            file.setName(newName);
+        protected void apply() throws Exception {
+            disk.renameFile(dir, prevName, newName);
+        }
+    }
+    /**
+     * Command to move a file to another directory.
+     * <p>
+     * This class implements the {@link Command} interface and encapsulates
+     * the moving of a file. Undoing the move puts the file back at its
+     * original place in its original directory, and redoing it puts the
+     * file back at the place it was given in the target directory.
+     * </p>
+     */
+    static class MoveCommand extends DiskCommand {
+        private File file;
+        private Directory from;
+        private long prevOrder;
+        private Directory to;
+        private long newOrder;
+        /**
+         * Constructs a MoveCommand for a file that has been moved to the specified directory.
+         *
+         * @param disk the disk that was changed
+         * @param file the moved file
+         * @param from the directory the file was moved from
+         * @param prevOrder the place the file had in the directory it was moved from
+         * @param to the directory the file was moved to
+         * @param change the versions of the disk on either side of the change
+         */
+        public MoveCommand(VirtualDisk disk, File file, Directory from, long prevOrder, Directory to, VirtualDisk.Change change) {
+            super(disk, change);
+            this.file = file;
+            this.from = from;
+            this.prevOrder = prevOrder;
+            this.to = to;
+            this.newOrder = file.getOrder();
+        }
+
+        @Override
+        protected void revert() throws Exception {
+            disk.moveFile(to, file.getName(), from, prevOrder);
+        }
+
+        @Override
+        protected void apply() throws Exception {
+            disk.moveFile(from, file.getName(), to, newOrder);
         }
     }
     /**
@@ -1310,26 +5210,32 @@ public class CVFS {
      * </p>
      */
     static class ChangeDirCommand implements Command {
+        private CVFS session;
         private Directory prevDir;
         private Directory newDir;
         /**
-         * Constructs a ChangeDirCommand to change the current working directory.
+         * Constructs a ChangeDirCommand to change the working directory of a session.
          *
+         * @param session the session whose working directory was changed
          * @param prevDir the previous working directory
          */
-        public ChangeDirCommand(Directory prevDir) {
+        public ChangeDirCommand(CVFS session, Directory prevDir) {
+            this.session = session;
             this.prevDir = prevDir;
-            this.newDir = workingDirectory;
+            this.newDir = session.workingDirectory;
         }
 
         @Override
         public void undo() throws Exception {
-            workingDirectory = prevDir;
+            // Another session may have deleted the directory since
+            if (!session.workingDisk.contains(prevDir)) throw new Exception("Directory not found.");
+            session.workingDirectory = prevDir;
         }
 
         @Override
         public void redo() throws Exception {
-            workingDirectory = newDir;
+            if (!session.workingDisk.contains(newDir)) throw new Exception("Directory not found.");
+            session.workingDirectory = newDir;
         }
     }
     /**
@@ -1341,14 +5247,17 @@ public class CVFS {
      * </p>
      */
     static class NewCriterionCommand implements Command {
+        private Map<String, Criterion> criteriaMap;
         private String criName;
         private Criterion criterion;
         /**
          * Constructs a NewCriterionCommand to create a new criterion.
          *
+         * @param criteriaMap the criteria of the session the criterion was created in
          * @param criName the name of the criterion to create
          */
-        public NewCriterionCommand(String criName) {
+        public NewCriterionCommand(Map<String, Criterion> criteriaMap, String criName) {
+            this.criteriaMap = criteriaMap;
             this.criName = criName;
             this.criterion = criteriaMap.get(criName);
         }
@@ -1364,15 +5273,101 @@ public class CVFS {
         }
     }
 
-    // Helper method to validate file names
+    // Helper methods to validate file and criterion names
     /**
-     * Validates the specified file name against a predefined pattern.
+     * Validates the specified file name.
+     * <p>
+     * A valid name has 1 to 10 characters from {@code [A-Za-z0-9]}. The check
+     * uses the same lookup table as {@link #encodeName(String)} and does not
+     * allocate.
+     * </p>
      *
      * @param name the name of the file to validate
      * @return true if the name is valid, false otherwise
      */
     public static boolean isValidName(String name) {
-        return name != null && name.matches(NAME_PATTERN);
+        return encodeName(name) >= 0;
+    }
+
+    /**
+     * Validates the specified criterion name, which must consist of exactly two letters.
+     *
+     * @param name the name of the criterion to validate
+     * @return true if the name is valid, false otherwise
+     */
+    public static boolean isValidCriterionName(String name) {
+        if (name == null || name.length() != CRI_NAME_LENGTH) return false;
+        for (int i = 0; i < CRI_NAME_LENGTH; i++) {
+            char c = name.charAt(i);
+            // Letters follow the ten digits in the name alphabet
+            if (c >= NAME_CODES.length || NAME_CODES[c] <= 10) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the specified string is one of the operators allowed for the size attribute.
+     *
+     * @param op the operator to check
+     * @return true if the operator is one of {@code >, <, >=, <=, ==, !=}, false otherwise
+     */
+    public static boolean isSizeOperator(String op) {
+        switch (op) {
+            case ">":
+            case "<":
+            case ">=":
+            case "<=":
+            case "==":
+            case "!=":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Helper methods to pack file names into a single long
+    /**
+     * Packs the specified file name into a single long.
+     * <p>
+     * Each of the at most ten characters is mapped to a 6-bit code, with the
+     * first character in the highest bits and unused slots left as zero.
+     * Codes follow ASCII order, so packed names compare the same way as the
+     * names themselves.
+     * </p>
+     *
+     * @param name the file name to pack
+     * @return the packed name, or -1 if the name is not a valid file name
+     */
+    public static long encodeName(String name) {
+        if (name == null || name.isEmpty() || name.length() > MAX_FILE_NAME_LENGTH) return -1;
+        long packed = 0;
+        for (int i = 0; i < MAX_FILE_NAME_LENGTH; i++) {
+            int code = 0;
+            if (i < name.length()) {
+                char c = name.charAt(i);
+                code = c < NAME_CODES.length ? NAME_CODES[c] : 0;
+                if (code == 0) return -1;
+            }
+            packed = (packed << NAME_CODE_BITS) | code;
+        }
+        return packed;
+    }
+
+    /**
+     * Unpacks a name produced by {@link #encodeName(String)}.
+     *
+     * @param packed the packed file name
+     * @return the file name as a string
+     */
+    public static String decodeName(long packed) {
+        char[] chars = new char[MAX_FILE_NAME_LENGTH];
+        int length = 0;
+        for (int shift = (MAX_FILE_NAME_LENGTH - 1) * NAME_CODE_BITS; shift >= 0; shift -= NAME_CODE_BITS) {
+            int code = (int) (packed >>> shift) & ((1 << NAME_CODE_BITS) - 1);
+            if (code == 0) break;
+            chars[length++] = NAME_ALPHABET.charAt(code - 1);
+        }
+        return new String(chars, 0, length);
     }
 }
 
@@ -0,0 +1,248 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static hk.edu.polyu.comp.comp2021.cvfs.model.CVFS.parseInput;
+
+/**
+ * Drives sessions on one virtual disk from many threads and checks what they see.
+ * <p>
+ * The first phase runs, for 1, 2, 4 and so on up to the given number of reader
+ * threads, each in its own session, {@code rList}, {@code rSearch},
+ * {@code list} and {@code search} in a loop while writer threads, each in
+ * its own session, create and delete documents in their own directory.
+ * It prints the operations per second of both, on a disk of each
+ * children mode. Every {@code rList} is checked to show a state that
+ * existed: each directory is 40 bytes plus the files listed below it,
+ * and the totals add up.
+ * </p>
+ * <p>
+ * The second phase lets the writer threads share one session, each
+ * creating documents in its own directory, then undoes every command of
+ * the session and checks that the disk is listed as it was before.
+ * </p>
+ * <p>
+ * Usage: {@code java hk.edu.polyu.comp.comp2021.cvfs.ConcurrencyStress [maxReaders] [writers] [seconds]}.
+ * The process exits with status 1 if any check fails or any command throws.
+ * </p>
+ */
+public class ConcurrencyStress {
+    private static final int BASE_FILE_SIZE = 40;
+    private static final ThreadLocal<ByteArrayOutputStream> OUTPUT = ThreadLocal.withInitial(ByteArrayOutputStream::new);
+    private static final PrintStream CONSOLE = System.out;
+    private static final AtomicInteger FAILURES = new AtomicInteger();
+
+    /**
+     * Main method to run the stress test.
+     *
+     * @param args the maximum number of readers, the number of writers and the seconds per run
+     * @throws Exception if the test cannot be set up
+     */
+    public static void main(String[] args) throws Exception {
+        int maxReaders = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 1;
+        // Every thread prints into its own buffer, so that the output of one command can be checked
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                OUTPUT.get().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                OUTPUT.get().write(b, off, len);
+            }
+        }, true));
+        for (String children : new String[]{"compact", "concurrent"}) {
+            CONSOLE.println("Children: " + children + ", writers: " + writers + ", " + seconds + " s per run");
+            CONSOLE.println("readers  reads/s  writes/s");
+            for (int readers = 1; ; readers = Math.min(readers * 2, maxReaders)) {
+                measure(children, readers, writers, seconds);
+                if (readers >= maxReaders) break;
+            }
+            undoSharedSession(children, writers, 2000);
+        }
+        CONSOLE.println(FAILURES.get() == 0 ? "All checks passed." : FAILURES.get() + " checks failed.");
+        System.exit(FAILURES.get() == 0 ? 0 : 1);
+    }
+
+    // Fills a new disk with a tree for the readers to walk and a directory for each writer
+    private static CVFS newDisk(String children, int writers) throws Exception {
+        CVFS cvfs = new CVFS();
+        run(cvfs, "newDisk 1000000000 --children " + children);
+        for (int i = 0; i < 20; i++) {
+            run(cvfs, "newDir d" + i);
+            for (int j = 0; j < 50; j++) {
+                run(cvfs, "newDoc d" + i + "/f" + j + " txt content" + (i * j));
+            }
+        }
+        for (int i = 0; i < writers; i++) {
+            run(cvfs, "newDir w" + i);
+        }
+        return cvfs;
+    }
+
+    private static void measure(String children, int readers, int writers, double seconds) throws Exception {
+        CVFS cvfs = newDisk(children, writers);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong writes = new AtomicLong();
+        long[] deadline = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            CVFS session = cvfs.openSession();
+            threads.add(new Thread(() -> {
+                String[] commands = {"rList", "rSearch IsDocument", "list", "search IsDocument"};
+                for (int n = 0; System.nanoTime() < deadline[0]; n++) {
+                    String command = commands[n % commands.length];
+                    String output = run(session, command);
+                    if (command.equals("rList")) checkListing(output);
+                    reads.incrementAndGet();
+                }
+            }));
+        }
+        for (int i = 0; i < writers; i++) {
+            CVFS session = cvfs.openSession();
+            String dir = "w" + i;
+            threads.add(new Thread(() -> {
+                Deque<String> created = new ArrayDeque<>();
+                for (int n = 0; System.nanoTime() < deadline[0]; n++) {
+                    if (created.size() < 50) {
+                        created.add(dir + "/f" + n);
+                        run(session, "newDoc " + dir + "/f" + n + " txt text" + n);
+                    } else {
+                        run(session, "delete " + created.poll());
+                    }
+                    writes.incrementAndGet();
+                }
+            }));
+        }
+        deadline[0] = System.nanoTime() + (long) (seconds * 1e9);
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        CONSOLE.printf("%7d  %7.0f  %8.0f%n", readers, reads.get() / seconds, writes.get() / seconds);
+        cvfs.closeSession();
+    }
+
+    // Several threads record into one session; undoing all of it must lead back to the start
+    private static void undoSharedSession(String children, int writers, int docs) throws Exception {
+        CVFS cvfs = newDisk(children, 0);
+        String before = run(cvfs, "rList");
+        CVFS session = cvfs.openSession();
+        for (int i = 0; i < writers; i++) {
+            run(session, "newDir u" + i);
+        }
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            String dir = "u" + i;
+            threads.add(new Thread(() -> {
+                for (int n = 0; n < docs; n++) {
+                    run(session, "newDoc " + dir + "/f" + n + " txt text" + n);
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        int undone = 0;
+        while (run(session, "undo").startsWith("Undo successful.")) {
+            undone++;
+        }
+        String after = run(cvfs, "rList");
+        boolean ok = undone == writers + writers * docs && after.equals(before);
+        if (!ok) FAILURES.incrementAndGet();
+        CONSOLE.println("Shared session: " + undone + " of " + (writers + writers * docs) + " commands undone, "
+                + (after.equals(before) ? "disk restored" : "disk differs") + (ok ? "" : "  FAILED"));
+        session.closeSession();
+        cvfs.closeSession();
+    }
+
+    // Runs one command and returns what it printed; an error other than an empty undo stack is a failure
+    private static String run(CVFS cvfs, String input) {
+        ByteArrayOutputStream output = OUTPUT.get();
+        output.reset();
+        String[] tokens = parseInput(input);
+        try {
+            switch (tokens[0]) {
+                case "newDisk":
+                    cvfs.newDisk(tokens);
+                    break;
+                case "newDir":
+                    cvfs.newDir(tokens);
+                    break;
+                case "newDoc":
+                    cvfs.newDoc(tokens);
+                    break;
+                case "delete":
+                    cvfs.delete(tokens);
+                    break;
+                case "list":
+                    cvfs.list(tokens);
+                    break;
+                case "rList":
+                    cvfs.rList(tokens);
+                    break;
+                case "search":
+                    cvfs.search(tokens);
+                    break;
+                case "rSearch":
+                    cvfs.rSearch(tokens);
+                    break;
+                case "undo":
+                    cvfs.undo();
+                    break;
+                default:
+                    throw new IllegalArgumentException(tokens[0]);
+            }
+        } catch (Exception e) {
+            if (!e.getMessage().equals("Nothing to undo.")) fail(input + ": " + e.getMessage());
+            return "Error: " + e.getMessage();
+        }
+        return output.toString();
+    }
+
+    // Checks that every directory is as large as the files listed below it, and that the totals add up
+    private static void checkListing(String output) {
+        Deque<long[]> open = new ArrayDeque<>(); // depth, listed size, sum of the files below
+        long count = 0;
+        long total = 0;
+        for (String line : output.split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("Total files: ")) {
+                while (!open.isEmpty()) close(open);
+                String[] parts = trimmed.substring("Total files: ".length()).split(", Total size: ");
+                if (Long.parseLong(parts[0]) != count || Long.parseLong(parts[1]) != total) {
+                    fail("rList totals " + trimmed + " but lists " + count + " files of " + total + " bytes");
+                }
+                return;
+            }
+            int depth = (line.length() - line.replaceAll("^ +", "").length()) / 4;
+            long size = Long.parseLong(trimmed.substring(trimmed.lastIndexOf(' ') + 1));
+            while (!open.isEmpty() && open.peek()[0] >= depth) close(open);
+            if (!open.isEmpty()) open.peek()[2] += size;
+            if (trimmed.startsWith("Directory Name: ")) open.push(new long[]{depth, size, BASE_FILE_SIZE});
+            count++;
+            total += size;
+        }
+        fail("rList printed no totals");
+    }
+
+    private static void close(Deque<long[]> open) {
+        long[] dir = open.pop();
+        if (dir[1] != dir[2]) fail("rList shows a directory of " + dir[1] + " bytes holding " + dir[2]);
+    }
+
+    private static void fail(String message) {
+        FAILURES.incrementAndGet();
+        CONSOLE.println("FAILED: " + message);
+    }
+}
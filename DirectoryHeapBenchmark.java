@@ -0,0 +1,85 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS.ArrayFileList;
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS.Directory;
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS.FileList;
+
+/**
+ * Measures the heap taken by small directories with their flyweight file lists.
+ * <p>
+ * For directories holding no, one and two child directories, the benchmark
+ * builds many of them after a forced garbage collection and divides the
+ * growth of the used heap by their number. It also measures, the same way,
+ * the file list such a directory holds today and the two lists, by order
+ * and by name, that every directory used to allocate eagerly with room for
+ * four files, so that the size of a directory under the eager layout can
+ * be derived: today's size, less today's list, plus the two eager lists.
+ * Child directories are counted with their parent in both.
+ * </p>
+ * <p>
+ * Usage: {@code java hk.edu.polyu.comp.comp2021.cvfs.model.DirectoryHeapBenchmark [directories]}.
+ * The figures depend on the JVM and its settings, such as compressed
+ * references; run it with a fixed heap, for example {@code -Xms1g -Xmx1g},
+ * for steadier results.
+ * </p>
+ */
+public class DirectoryHeapBenchmark {
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args the number of directories to build for each measurement
+     * @throws Exception if a directory cannot be built
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        Directory child = new Directory("c", null);
+        System.out.println("children  directory now  list now  eager lists  directory eager  (bytes per directory)");
+        for (int children = 0; children <= 2; children++) {
+            int shape = children;
+            double directory = measure(count, () -> {
+                Directory dir = new Directory("d", null);
+                for (int i = 0; i < shape; i++) dir.addFile(new Directory("c" + i, dir));
+                return dir;
+            });
+            double list = measure(count, () -> {
+                FileList files = FileList.EMPTY;
+                for (int i = 0; i < shape; i++) files = files.with(i, child);
+                return files;
+            });
+            double eager = measure(count, () -> {
+                FileList index = new ArrayFileList();
+                FileList files = new ArrayFileList();
+                for (int i = 0; i < shape; i++) {
+                    index = index.with(i, child);
+                    files = files.with(i, child);
+                }
+                return new FileList[]{index, files};
+            });
+            System.out.printf("%8d  %13.0f  %8.0f  %11.0f  %15.0f%n", children, directory, list, eager, directory - list + eager);
+        }
+    }
+
+    // Builds the specified number of objects, keeping them all reachable, and returns the heap each one takes
+    private static double measure(int count, Factory factory) throws Exception {
+        Object[] kept = new Object[count];
+        long before = usedHeap();
+        for (int i = 0; i < count; i++) kept[i] = factory.create();
+        long after = usedHeap();
+        if (kept[count - 1] == null) throw new IllegalStateException();
+        return Math.max(0, after - before) / (double) count; // shared objects take nothing, up to noise
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface Factory {
+        Object create() throws Exception;
+    }
+}
@@ -0,0 +1,197 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks sizes and totals on a disk far larger than 2^31 bytes.
+ * <p>
+ * A disk with a quota of {@code Long.MAX_VALUE} gets one large document,
+ * and each level of directories then holds two copies of the level below,
+ * which doubles the size without copying any content. {@code rList} and
+ * {@code rSearch} over the tree must report totals above 2^32 that add up.
+ * The disk is then filled with copies of the levels, largest first, until
+ * not even the smallest fits, and what is charged must still add up to no
+ * more than the quota.
+ * </p>
+ * <p>
+ * Usage: {@code java hk.edu.polyu.comp.comp2021.cvfs.LargeDiskCheck}.
+ * The process exits with status 1 if any check fails.
+ * </p>
+ */
+public class LargeDiskCheck {
+    private static final int LISTED_LEVELS = 8;
+    private static final int CONTENT_LENGTH = 8 << 20;
+    private static final PrintStream CONSOLE = System.out;
+    private static int failures;
+
+    /**
+     * Main method to run the check.
+     *
+     * @param args not used
+     * @throws Exception if a command that must succeed fails
+     */
+    public static void main(String[] args) throws Exception {
+        CVFS cvfs = new CVFS();
+        run(cvfs, "newDisk", String.valueOf(Long.MAX_VALUE));
+        run(cvfs, "newDir", "l0");
+        run(cvfs, "newDoc", "l0/big", "txt", "x".repeat(CONTENT_LENGTH));
+        List<Long> levels = new ArrayList<>();
+        levels.add(directorySize(cvfs, "l0"));
+        long docSize = levels.get(0) - 40;
+        CONSOLE.println("Document size: " + docSize);
+
+        // Level k holds two copies of level k - 1, until a level no longer fits
+        while (true) {
+            int level = levels.size();
+            run(cvfs, "newDir", "l" + level);
+            String output = tryRun(cvfs, "copy", "l" + (level - 1), "l" + level + "/a");
+            if (!output.startsWith("Error: ")) output = tryRun(cvfs, "copy", "l" + (level - 1), "l" + level + "/b");
+            if (output.startsWith("Error: ")) {
+                check(output.equals("Error: Disk space exceeded."), "level " + level + " fails with " + output.trim());
+                run(cvfs, "delete", "l" + level);
+                break;
+            }
+            long size = directorySize(cvfs, "l" + level);
+            check(size == 2 * levels.get(level - 1) + 40, "level " + level + " is " + size + " bytes");
+            levels.add(size);
+        }
+        CONSOLE.println("Levels: " + levels.size() + ", largest: " + levels.get(levels.size() - 1) + " bytes");
+
+        // The totals of a tree above 2^32 bytes; each directory counts with everything below it
+        long expectedFiles = (2L << LISTED_LEVELS) - 2 + (1L << LISTED_LEVELS);
+        long expectedSize = (1L << LISTED_LEVELS) * docSize;
+        for (int level = 0; level < LISTED_LEVELS; level++) {
+            expectedSize += (1L << (LISTED_LEVELS - level)) * levels.get(level);
+        }
+        run(cvfs, "changeDir", "l" + LISTED_LEVELS);
+        String listing = run(cvfs, "rList");
+        long[] listed = sumListing(listing);
+        checkTotals("rList", listing, expectedFiles, expectedSize, listed);
+        check(expectedSize > 1L << 32, "rList size " + expectedSize + " stays below 2^32");
+        String search = run(cvfs, "rSearch", "IsDocument");
+        checkTotals("rSearch", search, 1L << LISTED_LEVELS, (1L << LISTED_LEVELS) * docSize, sumListing(search));
+        CONSOLE.println("rList: " + lastLine(listing));
+        CONSOLE.println("rSearch: " + lastLine(search));
+        run(cvfs, "changeDir", "/");
+
+        // Fill the disk to the quota with copies of the levels, largest first
+        run(cvfs, "newDir", "fill");
+        int copies = 0;
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            while (!tryRun(cvfs, "copy", "l" + level, "fill/c" + copies).startsWith("Error: ")) {
+                copies++;
+            }
+        }
+        long used = lastNumber(run(cvfs, "stats").split("\n")[0]);
+        long total = 40; // the root directory itself
+        for (String line : run(cvfs, "list").split("\n")) {
+            if (line.startsWith("Directory Name: ")) total += lastNumber(line);
+        }
+        check(used == total, "disk used " + used + " but the root lists " + total + " bytes");
+        check(used > 0 && Long.MAX_VALUE - used < levels.get(0), used + " bytes used leaves room for another copy");
+        String small = tryRun(cvfs, "newDoc", "tiny", "txt", "a");
+        check(Long.MAX_VALUE - used >= 42 == !small.startsWith("Error: "), "a small document near the quota: " + small.trim());
+        CONSOLE.println("Filled with " + copies + " copies, disk used: " + used + ", free: " + (Long.MAX_VALUE - used));
+
+        CONSOLE.println(failures == 0 ? "All checks passed." : failures + " checks failed.");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void checkTotals(String command, String output, long files, long size, long[] listed) {
+        String totals = "Total files: " + files + ", Total size: " + size;
+        check(lastLine(output).equals(totals), command + " printed " + lastLine(output) + " instead of " + totals);
+        check(listed[0] == files && listed[1] == size, command + " listed " + listed[0] + " files of " + listed[1] + " bytes");
+    }
+
+    // Counts the files listed before the totals and adds up their sizes
+    private static long[] sumListing(String output) {
+        long[] sum = new long[2];
+        for (String line : output.split("\n")) {
+            if (line.startsWith("Total files: ")) break;
+            sum[0]++;
+            sum[1] += lastNumber(line);
+        }
+        return sum;
+    }
+
+    private static long directorySize(CVFS cvfs, String name) throws Exception {
+        for (String line : run(cvfs, "list").split("\n")) {
+            if (line.startsWith("Directory Name: " + name + ",")) return lastNumber(line);
+        }
+        throw new Exception("Directory " + name + " is not listed.");
+    }
+
+    private static long lastNumber(String line) {
+        return Long.parseLong(line.trim().substring(line.trim().lastIndexOf(' ') + 1));
+    }
+
+    private static String lastLine(String output) {
+        String[] lines = output.split("\n");
+        return lines[lines.length - 1].trim();
+    }
+
+    private static void check(boolean ok, String message) {
+        if (ok) return;
+        failures++;
+        CONSOLE.println("FAILED: " + message);
+    }
+
+    // Runs one command and returns what it printed
+    private static String run(CVFS cvfs, String... tokens) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(output, true));
+        try {
+            switch (tokens[0]) {
+                case "newDisk":
+                    cvfs.newDisk(tokens);
+                    break;
+                case "newDir":
+                    cvfs.newDir(tokens);
+                    break;
+                case "newDoc":
+                    cvfs.newDoc(tokens);
+                    break;
+                case "delete":
+                    cvfs.delete(tokens);
+                    break;
+                case "copy":
+                    cvfs.copy(tokens);
+                    break;
+                case "changeDir":
+                    cvfs.changeDir(tokens);
+                    break;
+                case "list":
+                    cvfs.list(tokens);
+                    break;
+                case "rList":
+                    cvfs.rList(tokens);
+                    break;
+                case "rSearch":
+                    cvfs.rSearch(tokens);
+                    break;
+                case "stats":
+                    cvfs.stats();
+                    break;
+                default:
+                    throw new IllegalArgumentException(tokens[0]);
+            }
+        } finally {
+            System.setOut(CONSOLE);
+        }
+        return output.toString();
+    }
+
+    // Runs one command that may fail, and returns its error as it would be printed
+    private static String tryRun(CVFS cvfs, String... tokens) {
+        try {
+            return run(cvfs, tokens);
+        } catch (Exception e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+}
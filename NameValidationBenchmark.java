@@ -0,0 +1,75 @@
+package hk.edu.polyu.comp.comp2021.cvfs;
+
+import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
+
+import java.util.function.Predicate;
+
+/**
+ * Compares the name and operator checks of {@link CVFS} with the regular expressions they replaced.
+ * <p>
+ * For file names, criterion names and size operators, the benchmark first
+ * checks that both ways agree on a set of valid and invalid inputs, then
+ * times each over the same inputs for a few rounds and prints the
+ * nanoseconds per check. The first rounds warm the JIT up and are best
+ * ignored.
+ * </p>
+ * <p>
+ * Usage: {@code java hk.edu.polyu.comp.comp2021.cvfs.NameValidationBenchmark [checks] [rounds]}.
+ * The process exits with status 1 if the two ways disagree on any input.
+ * </p>
+ */
+public class NameValidationBenchmark {
+    private static final String[] NAMES = {"abc", "Doc12345", "x", "root", "bad-name", "ABCDEFGHIJ", "toolongname1", "q9", "", "a b", "\u00fcmlaut", "Z0"};
+    private static final String[] CRITERION_NAMES = {"aa", "Zq", "a1", "abc", "a", "", "-x", "XY"};
+    private static final String[] OPERATORS = {">", "<", ">=", "<=", "==", "!=", "=", "=>", "<>", ""};
+    private static long sink;
+
+    /**
+     * Main method to run the benchmark.
+     *
+     * @param args the number of checks per timed run and the number of rounds
+     */
+    public static void main(String[] args) {
+        int checks = args.length > 0 ? Integer.parseInt(args[0]) : 20_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        boolean agree = agree("name", NAMES, name -> name.matches("^[A-Za-z0-9]{1,10}$"), CVFS::isValidName)
+                & agree("criterion name", CRITERION_NAMES, name -> name.matches("^[A-Za-z]{2}$"), CVFS::isValidCriterionName)
+                & agree("size operator", OPERATORS, op -> op.matches(">|<|>=|<=|==|!="), CVFS::isSizeOperator);
+        if (!agree) System.exit(1);
+        System.out.println("round  name regex  name check  cri regex  cri check  op regex  op check  (ns per check)");
+        for (int round = 1; round <= rounds; round++) {
+            System.out.printf("%5d  %10.1f  %10.1f  %9.1f  %9.1f  %8.1f  %8.1f%n", round,
+                    time(NAMES, checks, name -> name.matches("^[A-Za-z0-9]{1,10}$")),
+                    time(NAMES, checks, CVFS::isValidName),
+                    time(CRITERION_NAMES, checks, name -> name.matches("^[A-Za-z]{2}$")),
+                    time(CRITERION_NAMES, checks, CVFS::isValidCriterionName),
+                    time(OPERATORS, checks, op -> op.matches(">|<|>=|<=|==|!=")),
+                    time(OPERATORS, checks, CVFS::isSizeOperator));
+        }
+        System.out.println("Matches: " + sink);
+    }
+
+    // Prints every input on which the regular expression and the validator disagree
+    private static boolean agree(String kind, String[] inputs, Predicate<String> regex, Predicate<String> check) {
+        boolean agree = true;
+        for (String input : inputs) {
+            if (regex.test(input) != check.test(input)) {
+                System.out.println("FAILED: the " + kind + " \"" + input + "\" is " + (regex.test(input) ? "valid" : "invalid")
+                        + " by the regular expression only");
+                agree = false;
+            }
+        }
+        return agree;
+    }
+
+    private static double time(String[] inputs, int checks, Predicate<String> check) {
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < checks; i++) {
+            if (check.test(inputs[i % inputs.length])) matches++;
+        }
+        long elapsed = System.nanoTime() - start;
+        sink += matches;
+        return elapsed / (double) checks;
+    }
+}